@@ -0,0 +1,626 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package concurrency_tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of worker threads executing {@link Task}s, each worker with a
+ * deque of its own. A worker takes its newest task first, which keeps the
+ * subtasks a task submits on the worker (and cache) it was submitted from,
+ * and when it runs out steals the oldest task of another worker, which
+ * tends to be the largest piece of work left there.
+ *
+ * Tasks submitted from outside are dealt out over the workers' deques, a
+ * batch at a time if submitted together so that each deque is locked once
+ * per batch rather than once per task. At most a given number of tasks can
+ * be waiting at once: submitting more from outside blocks until workers
+ * catch up. Tasks submitted by a running task never block (which could
+ * deadlock the workers) and go to the deque of the worker running it.
+ *
+ * The executor is also an ExecutorService, so it can stand in wherever a
+ * pool used to be created for a single computation. {@link #invokeAll}
+ * submits its tasks as one batch and, when called by a task running on a
+ * worker, has that worker perform waiting tasks until the batch is done
+ * rather than block, so tasks can fan out into subtasks on the same
+ * executor without running out of workers.
+ *
+ * {@link #shutdown()} stops tasks from being submitted from outside and
+ * puts a poison pill at the end of every worker's deque. A worker which
+ * takes its pill keeps going until no task is left waiting anywhere, then
+ * exits. Pills are never stolen, so every worker gets exactly one, and since
+ * no worker leaves work of its own behind, every task submitted before the
+ * shutdown (or by a task) is performed before the last worker exits.
+ *
+ * @author Zach Tosi
+ */
+public class WorkStealingExecutor extends AbstractExecutorService {
+
+    private static final Task POISON = new Task() {
+
+        @Override
+        public void perform() {
+        }
+
+        @Override
+        public boolean isPoison() {
+            return true;
+        }
+
+    };
+
+    private static WorkStealingExecutor commonPool;
+
+    private final Worker[] workers;
+
+    /** The most tasks which can be waiting before submitters block. */
+    private final int capacity;
+
+    /** Whether this is the common pool, which can't be shut down. */
+    private final boolean common;
+
+    /** The number of tasks waiting in deques, not counting pills. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Guards the conditions below and the shutdown flag. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when tasks are submitted or pills are handed out. */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Signalled when tasks are taken while submitters are waiting. */
+    private final Condition notFull = lock.newCondition();
+
+    private volatile int idleWorkers;
+
+    private volatile int blockedSubmitters;
+
+    private volatile boolean shutdown;
+
+    /** Where dealing out the next batch starts, so deques fill evenly. */
+    private int nextWorker;
+
+    /**
+     * Uses one worker per processor and room for 1024 tasks per worker.
+     */
+    public WorkStealingExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism
+     *            the number of worker threads
+     */
+    public WorkStealingExecutor(int parallelism) {
+        this(parallelism, 1024 * parallelism);
+    }
+
+    /**
+     * @param parallelism
+     *            the number of worker threads
+     * @param capacity
+     *            the most tasks which can be waiting to be performed before
+     *            submitting more from outside blocks
+     */
+    public WorkStealingExecutor(int parallelism, int capacity) {
+        this(parallelism, capacity, false);
+    }
+
+    private WorkStealingExecutor(int parallelism, int capacity,
+        boolean common) {
+        if (parallelism < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Parallelism and capacity"
+                + " must be positive");
+        }
+        this.capacity = capacity;
+        this.common = common;
+        workers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker w : workers) {
+            w.start();
+        }
+    }
+
+    /**
+     * @return an executor with one worker per processor, created on first
+     *         use and shared by everything which doesn't bring an executor
+     *         of its own, so that a long-lived program doesn't create and
+     *         tear down threads for every computation; shutting it down has
+     *         no effect
+     */
+    public static synchronized WorkStealingExecutor commonPool() {
+        if (commonPool == null) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            commonPool = new WorkStealingExecutor(parallelism,
+                1024 * parallelism, true);
+        }
+        return commonPool;
+    }
+
+    /**
+     * Submits a single task.
+     *
+     * @param task
+     * @throws RejectedExecutionException
+     *             if the executor has been shut down (and the task isn't
+     *             being submitted by a worker)
+     */
+    public void submit(Task task) {
+        submitAll(Collections.singletonList(task));
+    }
+
+    /**
+     * Submits a batch of tasks. From outside the executor, the batch is
+     * dealt out over the workers in contiguous runs, blocking while there
+     * isn't room for it (a batch larger than the capacity is submitted in
+     * pieces). From a worker, the batch goes to the worker's own deque
+     * without blocking.
+     *
+     * @param tasks
+     * @throws RejectedExecutionException
+     *             if the executor has been shut down (and the tasks aren't
+     *             being submitted by a worker)
+     */
+    public void submitAll(Collection<? extends Task> tasks) {
+        for (Task t : tasks) {
+            if (t.isPoison()) {
+                throw new IllegalArgumentException("Poison pills are"
+                    + " reserved for shutdown");
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        Worker self = currentWorker();
+        if (self != null) {
+            // Counted first so that the count never falls short of what's
+            // waiting, which draining workers rely on
+            queued.addAndGet(tasks.size());
+            synchronized (self.deque) {
+                // Keep the pill (if any) last, where it can't block stealing
+                Task pill = self.deque.peekLast() == POISON ? self.deque
+                    .pollLast() : null;
+                self.deque.addAll(tasks);
+                if (pill != null) {
+                    self.deque.addLast(pill);
+                }
+            }
+            wakeIdleWorkers();
+            return;
+        }
+        List<Task> all = new ArrayList<Task>(tasks);
+        for (int from = 0; from < all.size(); from += capacity) {
+            List<Task> piece = all.subList(from,
+                Math.min(all.size(), from + capacity));
+            int start = reserve(piece.size());
+            deal(piece, start);
+            wakeIdleWorkers();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submit(new RunnableTask(command));
+    }
+
+    /**
+     * Submits the tasks as one batch and waits for all of them. Called from
+     * a worker, the worker performs waiting tasks (its own first) until the
+     * batch is done instead of blocking.
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(
+        Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        List<Task> batch = new ArrayList<Task>(tasks.size());
+        for (Callable<T> c : tasks) {
+            FutureTask<T> f = new FutureTask<T>(c);
+            futures.add(f);
+            batch.add(new RunnableTask(f));
+        }
+        submitAll(batch);
+        Worker self = currentWorker();
+        try {
+            for (Future<T> f : futures) {
+                if (self != null) {
+                    while (!f.isDone()) {
+                        if (!self.runNext()) {
+                            // The rest of the batch is being run elsewhere
+                            Thread.yield();
+                        }
+                    }
+                } else if (!f.isDone()) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        // Reported by the future itself
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+            throw e;
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for room for the given number of tasks and claims it.
+     *
+     * @return the worker to start dealing the tasks out at
+     */
+    private int reserve(int n) {
+        lock.lock();
+        try {
+            boolean interrupted = false;
+            while (!shutdown && queued.get() + n > capacity) {
+                blockedSubmitters++;
+                try {
+                    notFull.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } finally {
+                    blockedSubmitters--;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been"
+                    + " shut down");
+            }
+            queued.addAndGet(n);
+            int start = nextWorker;
+            nextWorker = (nextWorker + 1) % workers.length;
+            return start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Splits the tasks into as many contiguous runs as there are workers
+     * (or tasks, if fewer) and appends each run to a deque.
+     */
+    private void deal(List<Task> tasks, int start) {
+        int n = tasks.size();
+        int runs = Math.min(n, workers.length);
+        for (int r = 0; r < runs; r++) {
+            Worker w = workers[(start + r) % workers.length];
+            List<Task> run = tasks.subList(r * n / runs, (r + 1) * n / runs);
+            synchronized (w.deque) {
+                w.deque.addAll(run);
+            }
+        }
+    }
+
+    private void wakeIdleWorkers() {
+        if (idleWorkers > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Accounts for a task having been taken from a deque. */
+    private void taken() {
+        if (queued.decrementAndGet() < capacity && blockedSubmitters > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the worker running on this thread, or null if it isn't one of
+     *         this executor's
+     */
+    private Worker currentWorker() {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker && ((Worker) t).getExecutor() == this) {
+            return (Worker) t;
+        }
+        return null;
+    }
+
+    /**
+     * Stops tasks from being submitted from outside and has the workers
+     * exit once all the tasks submitted so far have been performed. Returns
+     * at once; see {@link #awaitTermination(long, TimeUnit)}. Submitters
+     * blocked for room are rejected. Has no effect on the common pool.
+     */
+    @Override
+    public void shutdown() {
+        if (common) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            for (Worker w : workers) {
+                synchronized (w.deque) {
+                    w.deque.addLast(POISON);
+                }
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Shuts down and takes every task which hasn't been started off the
+     * deques. The workers exit once the tasks they are running are done.
+     *
+     * @return the tasks taken off, which will never be performed
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        if (common) {
+            return dropped;
+        }
+        shutdown();
+        for (Worker w : workers) {
+            synchronized (w.deque) {
+                for (Task t : w.deque) {
+                    if (!t.isPoison()) {
+                        dropped.add(t instanceof RunnableTask
+                            ? ((RunnableTask) t).command : new TaskRunner(t));
+                    }
+                }
+                w.deque.clear();
+                w.deque.addLast(POISON);
+            }
+        }
+        queued.addAndGet(-dropped.size());
+        return dropped;
+    }
+
+    /**
+     * Waits for every worker to exit after a shutdown.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if they all did before the timeout
+     * @throws InterruptedException
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker w : workers) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return !w.isAlive() && isTerminated();
+            }
+            TimeUnit.NANOSECONDS.timedJoin(w, left);
+            if (w.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        for (Worker w : workers) {
+            if (w.isAlive()) {
+                return false;
+            }
+        }
+        return shutdown;
+    }
+
+    public int getParallelism() {
+        return workers.length;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** A Runnable run as a task. */
+    private static final class RunnableTask implements Task {
+
+        private final Runnable command;
+
+        public RunnableTask(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void perform() {
+            command.run();
+        }
+
+        @Override
+        public boolean isPoison() {
+            return false;
+        }
+
+    }
+
+    /** A task handed back as a Runnable by {@link #shutdownNow()}. */
+    private static final class TaskRunner implements Runnable {
+
+        private final Task task;
+
+        public TaskRunner(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.perform();
+        }
+
+    }
+
+    /**
+     * A worker thread and its deque, whose tail is taken from by the
+     * worker and whose head is stolen from by the others.
+     */
+    private final class Worker extends Thread {
+
+        private final ArrayDeque<Task> deque = new ArrayDeque<Task>();
+
+        private final int index;
+
+        /** Whether this worker has taken its pill. */
+        private boolean poisoned;
+
+        public Worker(int index) {
+            super("work-stealing-" + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        public WorkStealingExecutor getExecutor() {
+            return WorkStealingExecutor.this;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (runNext()) {
+                    continue;
+                }
+                if (!poisoned) {
+                    awaitWork();
+                } else if (queued.get() == 0) {
+                    return; // Drained
+                } else {
+                    // Tasks are being dealt or taken elsewhere
+                    Thread.yield();
+                }
+            }
+        }
+
+        /**
+         * Performs this worker's newest task or, if it has none, steals one.
+         *
+         * @return false if there was nothing to perform
+         */
+        private boolean runNext() {
+            Task task;
+            synchronized (deque) {
+                task = deque.pollLast();
+            }
+            if (task == null) {
+                task = steal();
+            }
+            if (task == null) {
+                return false;
+            }
+            if (task.isPoison()) {
+                poisoned = true;
+                return true;
+            }
+            taken();
+            try {
+                task.perform();
+            } catch (Throwable e) {
+                getUncaughtExceptionHandler().uncaughtException(this, e);
+            }
+            return true;
+        }
+
+        /**
+         * @return the oldest task of the first other worker which has one
+         *         (never a pill), or null if none does
+         */
+        private Task steal() {
+            for (int k = 1; k < workers.length; k++) {
+                Worker victim = workers[(index + k) % workers.length];
+                synchronized (victim.deque) {
+                    Task head = victim.deque.peekFirst();
+                    if (head != null && !head.isPoison()) {
+                        return victim.deque.pollFirst();
+                    }
+                }
+            }
+            return null;
+        }
+
+        /** Sleeps until there could be something to take or steal. */
+        private void awaitWork() {
+            lock.lock();
+            try {
+                idleWorkers++;
+                try {
+                    while (queued.get() == 0 && isEmpty()) {
+                        notEmpty.await();
+                    }
+                } finally {
+                    idleWorkers--;
+                }
+            } catch (InterruptedException e) {
+                // Workers only stop by poison; keep going
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isEmpty() {
+            synchronized (deque) {
+                return deque.isEmpty();
+            }
+        }
+
+    }
+
+}
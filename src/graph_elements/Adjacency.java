@@ -0,0 +1,277 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_elements;
+
+import graph_operations.TransitionMatrix;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The edges of a network, stored once in compressed sparse row/column form,
+ * together with the nodes so that edges can be presented as the node to
+ * weight maps nodes have always offered. The maps are read-only views
+ * created on demand; nothing is copied. The flow along every edge (the
+ * relative frequency of its source times its transfer probability) is
+ * computed once and kept in primitive arrays indexed like the matrix's
+ * edges, where exit probability calculations read it directly.
+ *
+ * @author Zach Tosi
+ */
+final class Adjacency {
+
+    private final TransitionMatrix matrix;
+
+    /** The nodes of the network by index, i.e. by row of the matrix. */
+    private final Node[] nodesByIndex;
+
+    /** The flow along each edge, in row-wise (out-going) order. */
+    private final double[] outFlows;
+
+    /** The flow along each edge, in column-wise (in-coming) order. */
+    private final double[] inFlows;
+
+    /**
+     *
+     * @param matrix
+     * @param nodesByIndex
+     *            whose relative frequencies must already be set; see
+     *            {@link #updateFlows(int)} should they change
+     */
+    Adjacency(TransitionMatrix matrix, Node[] nodesByIndex) {
+        this.matrix = matrix;
+        this.nodesByIndex = nodesByIndex;
+        outFlows = new double[matrix.getNumEdges()];
+        inFlows = new double[matrix.getNumEdges()];
+        for (int i = 0, n = matrix.getNumNodes(); i < n; i++) {
+            double freq = frequency(i);
+            for (int e = matrix.outStart(i), end = matrix.outEnd(i);
+                e < end; e++) {
+                outFlows[e] = freq * matrix.outWeight(e);
+            }
+            for (int e = matrix.inStart(i), end = matrix.inEnd(i); e < end;
+                e++) {
+                inFlows[e] = frequency(matrix.inSource(e))
+                    * matrix.inWeight(e);
+            }
+        }
+    }
+
+    TransitionMatrix getMatrix() {
+        return matrix;
+    }
+
+    Node getNode(int index) {
+        return nodesByIndex[index];
+    }
+
+    /**
+     * @param edge
+     *            a row-wise edge index
+     * @return the flow along the edge
+     */
+    double outFlow(int edge) {
+        return outFlows[edge];
+    }
+
+    /**
+     * @param edge
+     *            a column-wise edge index
+     * @return the flow along the edge
+     */
+    double inFlow(int edge) {
+        return inFlows[edge];
+    }
+
+    /**
+     * Recomputes the flow along the out-going edges of a node whose relative
+     * frequency has changed, in both orderings. Costs O(d log D) for a node
+     * of out-degree d and in-degrees of its neighbors at most D.
+     *
+     * @param index
+     */
+    void updateFlows(int index) {
+        double freq = frequency(index);
+        for (int e = matrix.outStart(index), end = matrix.outEnd(index);
+            e < end; e++) {
+            outFlows[e] = freq * matrix.outWeight(e);
+            int k = findInEdge(index, matrix.outTarget(e));
+            inFlows[k] = freq * matrix.inWeight(k);
+        }
+    }
+
+    /**
+     * @return the column-wise index of the edge from source to target, which
+     *         must exist
+     */
+    private int findInEdge(int source, int target) {
+        int lo = matrix.inStart(target);
+        int hi = matrix.inEnd(target) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (matrix.inSource(mid) < source) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the relative frequency of the node with the given index, zero
+     *         if there isn't one
+     */
+    private double frequency(int index) {
+        Node n = nodesByIndex[index];
+        return n == null ? 0 : n.getRelativeFrequency();
+    }
+
+    /**
+     * @param index
+     * @return a view of the out-going edges of the node with the given index
+     */
+    Map<Node, Double> outEdges(int index) {
+        return new EdgeView(index, true);
+    }
+
+    /**
+     * @param index
+     * @return a view of the in-coming edges of the node with the given index
+     */
+    Map<Node, Double> inEdges(int index) {
+        return new EdgeView(index, false);
+    }
+
+    /**
+     * A read-only map from the nodes at the other ends of a node's edges to
+     * the weights of those edges.
+     */
+    private final class EdgeView extends AbstractMap<Node, Double> {
+
+        private final int index;
+
+        private final boolean out;
+
+        public EdgeView(int index, boolean out) {
+            this.index = index;
+            this.out = out;
+        }
+
+        private int start() {
+            return out ? matrix.outStart(index) : matrix.inStart(index);
+        }
+
+        private int end() {
+            return out ? matrix.outEnd(index) : matrix.inEnd(index);
+        }
+
+        /**
+         * @return the row-wise index of the edge from this view's node to the
+         *         given one (or the other way around for in-coming edges),
+         *         or -1
+         */
+        private int find(Object key) {
+            if (!(key instanceof Node)) {
+                return -1;
+            }
+            int other = ((Node) key).getIndex();
+            if (other < 0 || other >= nodesByIndex.length
+                || !key.equals(nodesByIndex[other])) {
+                return -1;
+            }
+            return out ? matrix.findEdge(index, other) : matrix.findEdge(
+                other, index);
+        }
+
+        @Override
+        public int size() {
+            return end() - start();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) != -1;
+        }
+
+        @Override
+        public Double get(Object key) {
+            int e = find(key);
+            return e == -1 ? null : matrix.outWeight(e);
+        }
+
+        @Override
+        public Set<Map.Entry<Node, Double>> entrySet() {
+            return new AbstractSet<Map.Entry<Node, Double>>() {
+
+                @Override
+                public Iterator<Map.Entry<Node, Double>> iterator() {
+                    return new Iterator<Map.Entry<Node, Double>>() {
+
+                        private int e = start();
+
+                        private final int end = end();
+
+                        @Override
+                        public boolean hasNext() {
+                            return e < end;
+                        }
+
+                        @Override
+                        public Map.Entry<Node, Double> next() {
+                            if (e >= end) {
+                                throw new NoSuchElementException();
+                            }
+                            int k = e++;
+                            if (out) {
+                                return new SimpleImmutableEntry<Node, Double>(
+                                    nodesByIndex[matrix.outTarget(k)],
+                                    matrix.outWeight(k));
+                            }
+                            return new SimpleImmutableEntry<Node, Double>(
+                                nodesByIndex[matrix.inSource(k)],
+                                matrix.inWeight(k));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return EdgeView.this.size();
+                }
+
+            };
+        }
+
+    }
+
+}
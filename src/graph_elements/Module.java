@@ -21,7 +21,6 @@
  */
 package graph_elements;
 
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -32,39 +31,18 @@ import java.util.Set;
  */
 public class Module {
 
-    private final Set<Node> nodes = Collections
-        .synchronizedSet(new HashSet<Node>());
+    private final Set<Node> nodes = new HashSet<Node>();
     private double sumNodeFrequencies;
     private double exitProbability;
+    /**
+     * The flow along the edges leaving this module, i.e. the part of the exit
+     * probability which is not due to teleportation. Kept so that adding or
+     * removing a node only needs to look at that node's edges.
+     */
+    private double exitFlow;
     private final double teleportProb;
     private int totNumNodesInNetwork;
 
-    public static boolean areConnected(Module m1, Module m2) {
-        Module smaller;
-        Module larger;
-        if (m1.getSize() < m2.getSize()) {
-            smaller = m1;
-            larger = m2;
-        } else {
-            smaller = m2;
-            larger = m1;
-        }
-        for (Node n : smaller.getNodes()) {
-            Set<Node> tempSet = new HashSet<Node>(n.getTransferProbsOut()
-                .keySet());
-            tempSet.retainAll(larger.getNodes());
-            if (!tempSet.isEmpty()) {
-                return true;
-            }
-            tempSet = new HashSet<Node>(n.getTransferProbsIn().keySet());
-            tempSet.retainAll(larger.getNodes());
-            if (!tempSet.isEmpty()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * 
      * @param teleportProb
@@ -109,6 +87,7 @@ public class Module {
         cpy.mergeIntoNoCalc(this);
         cpy.setExitProbability(getExitProbability());
         cpy.setSumNodeFrequencies(getSumNodeFrequencies());
+        cpy.exitFlow = exitFlow;
         cpy.totNumNodesInNetwork = totNumNodesInNetwork;
         return cpy;
     }
@@ -128,15 +107,13 @@ public class Module {
         double wtSum = 0;
         for (Node n : nodes) {
             sum += n.getRelativeFrequency();
-            Set<Node> outNodes = n.getTransferProbsOut().keySet();
-            for (Node m : outNodes) {
-                boolean cont = nodes.contains(m);
-                if (!cont) {
-                    wtSum += n.getRelativeFrequency()
-                        * n.getTransferProbsOut().get(m);
+            for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+                if (!nodes.contains(n.outNeighbor(e))) {
+                    wtSum += n.outFlow(e);
                 }
             }
         }
+        exitFlow = wtSum;
         wtSum *= (1 - teleportProb);
         sum *= prob;
         exitProbability = sum + wtSum;
@@ -157,6 +134,9 @@ public class Module {
     }
 
     /**
+     * Merges the nodes of the given module into this one. Only the edges of
+     * the smaller of the two modules are examined to find the flow between
+     * them, which no longer exits the merged module.
      * 
      * @param toMerge
      * @param teleportProb
@@ -165,12 +145,166 @@ public class Module {
      */
     public synchronized Module mergeInto(Module toMerge, double teleportProb,
         int totNumNodes) {
+        return mergeInto(toMerge, flowBetween(toMerge), teleportProb,
+            totNumNodes);
+    }
+
+    /**
+     * Merges another module into this one like
+     * {@link #mergeInto(Module, double, int)}, given the flow along the edges
+     * between the two, which saves looking at their edges.
+     *
+     * @param toMerge
+     * @param flowBetween
+     *            the flow along the edges between the modules in either
+     *            direction
+     * @param teleportProb
+     * @param totNumNodes
+     * @return this module
+     */
+    public synchronized Module mergeInto(Module toMerge, double flowBetween,
+        double teleportProb, int totNumNodes) {
+        exitFlow = exitFlow + toMerge.exitFlow - flowBetween;
+        sumNodeFrequencies += toMerge.getSumNodeFrequencies();
         nodes.addAll(toMerge.getNodes());
-        calcExitProb(teleportProb, totNumNodes);
-        calcSumNodeFreqs();
+        totNumNodesInNetwork = totNumNodes;
+        exitProbability = exitProb(teleportProb, nodes.size(),
+            sumNodeFrequencies, exitFlow);
         return this;
     }
 
+    /**
+     * @param other
+     *            a module with no nodes in common with this one
+     * @return the exit probability this module would have if the other module
+     *         were merged into it; neither module is changed
+     */
+    public double calcMergedExitProb(Module other) {
+        return calcMergedExitProb(other, flowBetween(other));
+    }
+
+    /**
+     * @param other
+     *            a module with no nodes in common with this one
+     * @param flowBetween
+     *            the total flow along edges between the two modules in
+     *            either direction, if already known
+     * @return the exit probability this module would have if the other module
+     *         were merged into it; neither module is changed
+     */
+    public double calcMergedExitProb(Module other, double flowBetween) {
+        return exitProb(teleportProb, getSize() + other.getSize(),
+            sumNodeFrequencies + other.getSumNodeFrequencies(), exitFlow
+                + other.exitFlow - flowBetween);
+    }
+
+    /**
+     * @param n
+     *            a node which is not in this module
+     * @return the exit probability this module would have if n were added to
+     *         it; the module is not changed
+     */
+    public double calcExitProbWith(Node n) {
+        return exitProb(teleportProb, getSize() + 1, sumNodeFrequencies
+            + n.getRelativeFrequency(), exitFlowWith(n));
+    }
+
+    /**
+     * @param n
+     *            a node in this module
+     * @return the exit probability this module would have if n were removed
+     *         from it; the module is not changed
+     */
+    public double calcExitProbWithout(Node n) {
+        return exitProb(teleportProb, getSize() - 1, sumNodeFrequencies
+            - n.getRelativeFrequency(), exitFlowWithout(n));
+    }
+
+    /**
+     * The exit probability of a module with the given size, total node
+     * frequency and flow along its out-going edges.
+     */
+    private double exitProb(double teleportProb, int size, double sumFreqs,
+        double edgeExitFlow) {
+        return teleportProb * (totNumNodesInNetwork - size)
+            / (totNumNodesInNetwork - 1) * sumFreqs + (1 - teleportProb)
+            * edgeExitFlow;
+    }
+
+    /**
+     * @param other
+     * @return the total flow along edges between this module and the other,
+     *         in either direction
+     */
+    private double flowBetween(Module other) {
+        Module smaller = this;
+        Module larger = other;
+        if (other.getSize() < getSize()) {
+            smaller = other;
+            larger = this;
+        }
+        double flow = 0;
+        for (Node n : smaller.getNodes()) {
+            for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+                if (larger.nodes.contains(n.outNeighbor(e))) {
+                    flow += n.outFlow(e);
+                }
+            }
+            for (int e = n.inStart(), end = n.inEnd(); e < end; e++) {
+                if (larger.nodes.contains(n.inNeighbor(e))) {
+                    flow += n.inFlow(e);
+                }
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * @param n
+     *            a node which is not in this module
+     * @return the flow along edges leaving this module if n were added to it:
+     *         n's edges to non-members now exit the module and the edges from
+     *         members to n no longer do
+     */
+    private double exitFlowWith(Node n) {
+        double flow = exitFlow;
+        for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+            Node target = n.outNeighbor(e);
+            if (target != n && !nodes.contains(target)) {
+                flow += n.outFlow(e);
+            }
+        }
+        for (int e = n.inStart(), end = n.inEnd(); e < end; e++) {
+            if (nodes.contains(n.inNeighbor(e))) {
+                flow -= n.inFlow(e);
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * @param n
+     *            a node in this module
+     * @return the flow along edges leaving this module if n were removed from
+     *         it: n's edges to non-members no longer exit the module and the
+     *         edges from the remaining members to n now do
+     */
+    private double exitFlowWithout(Node n) {
+        double flow = exitFlow;
+        for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+            if (!nodes.contains(n.outNeighbor(e))) {
+                flow -= n.outFlow(e);
+            }
+        }
+        for (int e = n.inStart(), end = n.inEnd(); e < end; e++) {
+            Node source = n.inNeighbor(e);
+            if (source != n && nodes.contains(source)) {
+                flow += n.inFlow(e);
+            }
+        }
+        return flow;
+    }
+
     private void mergeIntoNoCalc(Module toMerge) {
         nodes.addAll(toMerge.getNodes());
     }
@@ -214,28 +348,38 @@ public class Module {
 
     /**
      * Make sure this is a copy of the original module or this will remove the
-     * node from the module
+     * node from the module. Costs time proportional to the degree of the node.
      * 
      * @param n
      * @return
      */
     public boolean removeNode(Node n) {
-        boolean remove = nodes.remove(n);
-        calcExitProb(teleportProb, totNumNodesInNetwork);
-        calcSumNodeFreqs();
-        return remove;
+        if (!nodes.contains(n)) {
+            return false;
+        }
+        exitFlow = exitFlowWithout(n);
+        nodes.remove(n);
+        sumNodeFrequencies -= n.getRelativeFrequency();
+        exitProbability = exitProb(teleportProb, nodes.size(),
+            sumNodeFrequencies, exitFlow);
+        return true;
     }
 
     /**
      * Make sure this is a copy of the original module or this will add the node
-     * to this module
+     * to this module. Costs time proportional to the degree of the node.
      * 
      * @param n
      */
     public void addNode(Node n) {
+        if (nodes.contains(n)) {
+            return;
+        }
+        exitFlow = exitFlowWith(n);
         nodes.add(n);
-        calcExitProb(teleportProb, totNumNodesInNetwork);
-        calcSumNodeFreqs();
+        sumNodeFrequencies += n.getRelativeFrequency();
+        exitProbability = exitProb(teleportProb, nodes.size(),
+            sumNodeFrequencies, exitFlow);
     }
 
     /**
@@ -0,0 +1,120 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_elements;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hierarchy of modules: each module is either split into submodules or is
+ * a leaf whose children are its nodes. The root stands for the whole network
+ * and has no module of its own; its submodules are the top level modules. A
+ * flat partition is a tree of depth one.
+ *
+ * @author Zach Tosi
+ */
+public final class ModuleTree {
+
+    /** The module, null at the root. */
+    private final Module module;
+
+    private final List<ModuleTree> submodules;
+
+    /**
+     * Creates a leaf.
+     *
+     * @param module
+     */
+    public ModuleTree(Module module) {
+        this(module, Collections.<ModuleTree> emptyList());
+    }
+
+    /**
+     *
+     * @param module
+     *            the module, or null for the root
+     * @param submodules
+     *            the trees of the submodules the module's nodes are split
+     *            into, empty if they aren't
+     */
+    public ModuleTree(Module module, List<ModuleTree> submodules) {
+        this.module = module;
+        this.submodules = Collections.unmodifiableList(
+            new ArrayList<ModuleTree>(submodules));
+    }
+
+    /**
+     * @return the module, or null if this is the root
+     */
+    public Module getModule() {
+        return module;
+    }
+
+    public List<ModuleTree> getSubmodules() {
+        return submodules;
+    }
+
+    public boolean isLeaf() {
+        return submodules.isEmpty();
+    }
+
+    /**
+     * @return the probability of exiting this tree's module, zero at the root
+     */
+    public double getExitProbability() {
+        return module == null ? 0 : module.getExitProbability();
+    }
+
+    /**
+     * @return the number of levels of modules below this one
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (ModuleTree sub : submodules) {
+            depth = Math.max(depth, sub.getDepth() + 1);
+        }
+        return depth;
+    }
+
+    /**
+     * @return the modules which aren't split any further, from left to right
+     */
+    public List<Module> getLeafModules() {
+        List<Module> leaves = new ArrayList<Module>();
+        collectLeaves(leaves);
+        return leaves;
+    }
+
+    private void collectLeaves(List<Module> leaves) {
+        if (isLeaf()) {
+            if (module != null) {
+                leaves.add(module);
+            }
+            return;
+        }
+        for (ModuleTree sub : submodules) {
+            sub.collectLeaves(leaves);
+        }
+    }
+
+}
@@ -22,33 +22,38 @@
 package graph_elements;
 
 import graph_operations.CostFunction;
+import graph_operations.PowerIteration;
 import graph_operations.RandomWalker;
+import graph_operations.TransitionMatrix;
 
 import java.awt.Color;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.regex.Pattern;
 
 import math.SimbrainMath;
 
 public class Network {
 
-    private Set<Module> modules = Collections
-        .synchronizedSet(new HashSet<Module>());
+    private Set<Module> modules = new LinkedHashSet<Module>();
     private final List<Node> flatNodeList;
+    /** The edges between the nodes, each node's index being its row. */
+    private Adjacency adjacency;
     private double teleportProb;
     private int numNodes;
     private final int originalNumNodes;
     private double nodeEntropy;
     private double hierarchicalEntropy;
+    /** The hierarchy the modules are the top level of, if any. */
+    private ModuleTree moduleTree;
     private double maxFreq;
     private double stdDev;
     private double maxDev;
@@ -59,12 +64,18 @@ public class Network {
     /**
      * 
      * @param list
+     * @param modules
+     * @param edges
+     *            the edges between the nodes, in which each node's row is its
+     *            index
      */
-    public Network(List<Node> list, Set<Module> modules) {
+    public Network(List<Node> list, Set<Module> modules,
+        TransitionMatrix edges) {
         this.flatNodeList = list;
         this.modules = modules;
         this.numNodes = list.size();
         this.originalNumNodes = numNodes;
+        attachEdges(edges);
         this.nodeEntropy = calcFlatEntropy();
         this.hierarchicalEntropy = CostFunction.cost(modules, nodeEntropy);
         calcStatistics();
@@ -81,8 +92,42 @@ public class Network {
      */
     public Network(double[][] adjacencyMat, String coordinateFileName,
         double teleportProb, boolean removeDeadNodes) {
-        this(adjacencyMat, RandomWalker.generate_freqs(adjacencyMat,
-            teleportProb), coordinateFileName, teleportProb, removeDeadNodes);
+        this(adjacencyMat, coordinateFileName, teleportProb, removeDeadNodes,
+            FlowMethod.RANDOM_WALKER);
+    }
+
+    /**
+     * A constructor that does not specify relative node visit frequency,
+     * which are instead generated using the specified method.
+     * @param adjacencyMat
+     * @param coordinateFileName
+     * @param teleportProb
+     * @param removeDeadNodes
+     * @param flowMethod
+     */
+    public Network(double[][] adjacencyMat, String coordinateFileName,
+        double teleportProb, boolean removeDeadNodes, FlowMethod flowMethod) {
+        this(adjacencyMat, coordinateFileName, teleportProb, removeDeadNodes,
+            flowMethod, new SplittableRandom());
+    }
+
+    /**
+     * A constructor that does not specify relative node visit frequency,
+     * which are instead generated using the specified method. Any random
+     * walkers draw their random number streams from the given stream.
+     * @param adjacencyMat
+     * @param coordinateFileName
+     * @param teleportProb
+     * @param removeDeadNodes
+     * @param flowMethod
+     * @param rand
+     */
+    public Network(double[][] adjacencyMat, String coordinateFileName,
+        double teleportProb, boolean removeDeadNodes, FlowMethod flowMethod,
+        SplittableRandom rand) {
+        this(adjacencyMat, generateFreqs(adjacencyMat, teleportProb,
+            flowMethod, rand), coordinateFileName, teleportProb,
+            removeDeadNodes);
     }
 
     /**
@@ -123,6 +168,27 @@ public class Network {
         System.out.println("Flat Entropy: " + nodeEntropy);
     }
 
+    /**
+     * Generates relative node visit frequencies for the adjacency matrix.
+     * Either method normalizes the matrix in place.
+     * @param adjacencyMat
+     * @param teleportProb
+     * @param flowMethod
+     * @param rand
+     * @return
+     */
+    private static double[] generateFreqs(double[][] adjacencyMat,
+        double teleportProb, FlowMethod flowMethod, SplittableRandom rand) {
+        switch (flowMethod) {
+        case POWER_ITERATION:
+            return PowerIteration.generate_freqs(adjacencyMat, teleportProb);
+        case RANDOM_WALKER:
+        default:
+            return RandomWalker.generate_freqs(adjacencyMat, teleportProb,
+                rand);
+        }
+    }
+
     /**
      * 
      * @param relativeFrequencies
@@ -136,7 +202,8 @@ public class Network {
     }
 
     /**
-     * Connect nodes to each other based on 
+     * Connect nodes to each other based on the non-zero entries of the weight
+     * matrix, which are stored in compressed form.
      * @param flatNodeList
      * @param weightMatrix
      */
@@ -146,15 +213,22 @@ public class Network {
         checkNodeMatrixConsistency(numNodes, weightMatrix.length);
         for (int i = 0; i < numNodes; i++) {
             checkNodeMatrixConsistency(numNodes, weightMatrix[i].length);
-            Node n1 = flatNodeList.get(i);
-            for (int j = 0; j < numNodes; j++) {
-                double weight = weightMatrix[i][j];
-                if (weight != 0) {
-                    Node n2 = flatNodeList.get(j);
-                    n1.addOutgoingEdge(n2, weight);
-                    n2.addIncomingEdge(n1, weight);
-                }
-            }
+        }
+        attachEdges(new TransitionMatrix(weightMatrix));
+    }
+
+    /**
+     * Makes the given edges the edges of this network's nodes.
+     * @param edges
+     */
+    private void attachEdges(TransitionMatrix edges) {
+        Node[] nodesByIndex = new Node[edges.getNumNodes()];
+        for (Node n : flatNodeList) {
+            nodesByIndex[n.getIndex()] = n;
+        }
+        adjacency = new Adjacency(edges, nodesByIndex);
+        for (Node n : flatNodeList) {
+            n.setAdjacency(adjacency);
         }
     }
 
@@ -170,8 +244,8 @@ public class Network {
         Iterator<Node> nodeIter = flatNodeList.iterator();
         while (nodeIter.hasNext()) {
             Node n = nodeIter.next();
-            if (n.getTransferProbsIn().size() == 0
-                && n.getTransferProbsOut().size() == 0) {
+            if (adjacency.getMatrix().inDegree(n.getIndex()) == 0
+                && adjacency.getMatrix().outDegree(n.getIndex()) == 0) {
                 nodeIter.remove(); // Dead Node
                 numNodes--;
                 //                if (n.getParentModule() != null) {
@@ -216,10 +290,12 @@ public class Network {
      */
     public double[][] getMatrix() {
         double[][] mat = new double[originalNumNodes][originalNumNodes];
+        TransitionMatrix edges = adjacency.getMatrix();
         for (Node n : flatNodeList) {
-            for (Node m : n.getTransferProbsOut().keySet()) {
-                mat[n.getIndex()][m.getIndex()] =
-                    n.getTransferProbsOut().get(m);
+            int i = n.getIndex();
+            for (int e = edges.outStart(i), end = edges.outEnd(i); e < end;
+                e++) {
+                mat[i][edges.outTarget(e)] = edges.outWeight(e);
             }
         }
         return mat;
@@ -411,8 +487,63 @@ public class Network {
         return modules;
     }
 
+    /**
+     * @return the edges between the nodes in compressed sparse row and column
+     *         form, indexed by node index
+     */
+    public TransitionMatrix getTransitionMatrix() {
+        return adjacency.getMatrix();
+    }
+
+    /**
+     * @return the current modules as a compact, index-based partition which
+     *         can be changed without affecting this network
+     */
+    public Partition createPartition() {
+        return new Partition(flatNodeList, modules, teleportProb);
+    }
+
     public void setModules(Set<Module> modules) {
         this.modules = modules;
+        this.moduleTree = null;
+    }
+
+    /**
+     * Replaces the modules with the materialized form of the partition and
+     * updates the hierarchical entropy to match.
+     * 
+     * @param partition
+     */
+    public void setModules(Partition partition) {
+        this.modules = partition.toModules();
+        this.moduleTree = null;
+        this.hierarchicalEntropy = CostFunction.cost(modules, nodeEntropy);
+    }
+
+    /**
+     * Replaces the modules with the top level modules of the hierarchy,
+     * which claim their nodes, and updates the hierarchical entropy to its
+     * codelength.
+     * 
+     * @param tree
+     */
+    public void setModules(ModuleTree tree) {
+        Set<Module> topLevel = new LinkedHashSet<Module>();
+        for (ModuleTree sub : tree.getSubmodules()) {
+            sub.getModule().claimOwnershipOfChildren();
+            topLevel.add(sub.getModule());
+        }
+        this.modules = topLevel;
+        this.moduleTree = tree;
+        this.hierarchicalEntropy = CostFunction.cost(tree, nodeEntropy);
+    }
+
+    /**
+     * @return the hierarchy of modules set by {@link #setModules(ModuleTree)},
+     *         or null if the modules are a flat partition
+     */
+    public ModuleTree getModuleTree() {
+        return moduleTree;
     }
 
     public int getNumNodes() {
@@ -446,4 +577,14 @@ public class Network {
         return hasDeadNodes;
     }
 
+    /**
+     * The ways in which relative node visit frequencies can be generated.
+     */
+    public enum FlowMethod {
+        /** Monte Carlo simulation of random walkers, see RandomWalker. */
+        RANDOM_WALKER,
+        /** Deterministic sparse power iteration, see PowerIteration. */
+        POWER_ITERATION;
+    }
+
 }
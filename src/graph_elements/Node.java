@@ -21,7 +21,7 @@
  */
 package graph_elements;
 
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -32,19 +32,17 @@ import java.util.Map;
  * in Gephi), and its index relative to other nodes.
  * 
  * Note that a Node will be considered equal to another node iff it has the same
- * xy coordinates and index as the other node. Whether or not they are the same
- * object is irrelevant. This allows two networks with the same nodes to be more
- * easily compared. 
+ * index as the other node. Whether or not they are the same object is
+ * irrelevant. This allows two networks with the same nodes to be more easily
+ * compared, while nodes which merely share coordinates stay distinct.
  * 
  * @author Zach Tosi
  *
  */
 public class Node {
 
-    private Map<Node, Double> transferProbsOut =
-        new LinkedHashMap<Node, Double>();
-    private Map<Node, Double> transferProbsIn =
-        new LinkedHashMap<Node, Double>();
+    /** The edges of the network this node belongs to. */
+    private Adjacency adjacency;
     private Module parentModule;
     private double relativeFrequency;
     private final int index;
@@ -56,15 +54,6 @@ public class Node {
         this.index = index;
     }
 
-    public Node(Map<Node, Double> transferProbsOut,
-        Map<Node, Double> transferProbsIn, double relativeFrequency,
-        final int index) {
-        setTransferProbsOut(transferProbsOut);
-        setTransferProbsIn(transferProbsIn);
-        setRelativeFrequency(relativeFrequency);
-        this.index = index;
-    }
-
     public double getX() {
         return x;
     }
@@ -93,36 +82,125 @@ public class Node {
         return relativeFrequency;
     }
 
+    /**
+     * Sets the node's relative frequency, and with it the flow along its
+     * out-going edges.
+     * 
+     * @param relativeFrequency
+     */
     public void setRelativeFrequency(double relativeFrequency) {
         this.relativeFrequency = relativeFrequency;
+        if (adjacency != null) {
+            adjacency.updateFlows(index);
+        }
     }
 
+    /**
+     * @return a read-only view of the transfer probabilities from this node
+     *         to each of its out-going neighbors
+     */
     public Map<Node, Double> getTransferProbsOut() {
-        return transferProbsOut;
-    }
-
-    public void setTransferProbsOut(Map<Node, Double> transferProbsOut) {
-        this.transferProbsOut = transferProbsOut;
+        if (adjacency == null) {
+            return Collections.emptyMap();
+        }
+        return adjacency.outEdges(index);
     }
 
+    /**
+     * @return a read-only view of the transfer probabilities to this node
+     *         from each of its in-coming neighbors
+     */
     public Map<Node, Double> getTransferProbsIn() {
-        return transferProbsIn;
+        if (adjacency == null) {
+            return Collections.emptyMap();
+        }
+        return adjacency.inEdges(index);
     }
 
-    public void setTransferProbsIn(Map<Node, Double> transferProbsIn) {
-        this.transferProbsIn = transferProbsIn;
+    /**
+     * Attaches this node to the edges of its network, in which its index is
+     * its row.
+     * 
+     * @param adjacency
+     */
+    void setAdjacency(Adjacency adjacency) {
+        this.adjacency = adjacency;
     }
 
     public int getIndex() {
         return index;
     }
 
-    public void addOutgoingEdge(Node target, double weight) {
-        transferProbsOut.put(target, weight);
+    /**
+     * The node's out-going edges are those of the network's transition
+     * matrix from {@link #outStart()} up to {@link #outEnd()}, read with
+     * {@link #outNeighbor(int)} and {@link #outFlow(int)}.
+     * 
+     * @return the position of the node's first out-going edge
+     */
+    public int outStart() {
+        return adjacency == null ? 0 : adjacency.getMatrix().outStart(index);
+    }
+
+    /**
+     * @return one past the position of the node's last out-going edge
+     */
+    public int outEnd() {
+        return adjacency == null ? 0 : adjacency.getMatrix().outEnd(index);
+    }
+
+    /**
+     * @param edge
+     *            the position of one of the node's out-going edges
+     * @return the node at the other end of the edge
+     */
+    public Node outNeighbor(int edge) {
+        return adjacency.getNode(adjacency.getMatrix().outTarget(edge));
     }
 
-    public void addIncomingEdge(Node source, double weight) {
-        transferProbsIn.put(source, weight);
+    /**
+     * @param edge
+     *            the position of one of the node's out-going edges
+     * @return the flow along the edge, i.e. this node's relative frequency
+     *         times the edge's transfer probability
+     */
+    public double outFlow(int edge) {
+        return adjacency.outFlow(edge);
+    }
+
+    /**
+     * The node's in-coming edges, like {@link #outStart()}.
+     * 
+     * @return the position of the node's first in-coming edge
+     */
+    public int inStart() {
+        return adjacency == null ? 0 : adjacency.getMatrix().inStart(index);
+    }
+
+    /**
+     * @return one past the position of the node's last in-coming edge
+     */
+    public int inEnd() {
+        return adjacency == null ? 0 : adjacency.getMatrix().inEnd(index);
+    }
+
+    /**
+     * @param edge
+     *            the position of one of the node's in-coming edges
+     * @return the node at the other end of the edge
+     */
+    public Node inNeighbor(int edge) {
+        return adjacency.getNode(adjacency.getMatrix().inSource(edge));
+    }
+
+    /**
+     * @param edge
+     *            the position of one of the node's in-coming edges
+     * @return the flow along the edge, i.e. the relative frequency of the
+     *         node at its other end times its transfer probability
+     */
+    public double inFlow(int edge) {
+        return adjacency.inFlow(edge);
     }
 
     /**
@@ -141,16 +219,12 @@ public class Node {
 
     @Override
     public int hashCode() {
-        final int sPrime = 17;
-        int xVal = new Double(x).hashCode() >> 5;
-        int yVal = new Double(y).hashCode();
-        int indVal = (index * sPrime) ^ xVal;
-        return xVal ^ yVal + indVal;
+        return index;
     }
 
     /**
-     * Equals based on if the xy coordinates and index are the same for the
-     * nodes being compared.
+     * Equals based on if the indices of the nodes being compared are the
+     * same.
      */
     @Override
     public boolean equals(Object obj) {
@@ -160,7 +234,7 @@ public class Node {
             return false;
         if (this.getClass() != obj.getClass())
             return false;
-        return this.hashCode() == obj.hashCode();
+        return index == ((Node) obj).index;
     }
 
 }
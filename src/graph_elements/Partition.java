@@ -0,0 +1,838 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_elements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact partition of the nodes of a network into modules, held entirely
+ * in primitive arrays: a module label for each node and the size, total node
+ * frequency and out-going edge flow of each module, alongside the node
+ * frequencies and edge flows themselves. Nodes are identified by their
+ * position in the network's node list and modules by an integer id in
+ * [0, number of nodes), so there is room for every node to be in a module of
+ * its own; ids of empty modules are simply unused. Moving a node or scoring
+ * a move touches only the node's edges and a handful of array entries, with
+ * no hashing, boxing or locking.
+ *
+ * {@link Module}s are the materialized form of a partition, see
+ * {@link #toModules()} and {@link Network#createPartition()}.
+ *
+ * Not thread safe: scoring methods may be called concurrently with one
+ * another, but not with {@link #moveNode(int, int)}.
+ *
+ * @author Zach Tosi
+ */
+public final class Partition {
+
+    private final List<Node> nodes;
+
+    private final double teleportProb;
+
+    private final double[] nodeFreqs;
+
+    /**
+     * The number of network nodes each node stands for: one, unless this
+     * partition is over the modules of another, see {@link #coarsen()}.
+     */
+    private final int[] nodeSizes;
+
+    /** The total number of network nodes. */
+    private final int networkSize;
+
+    /**
+     * The flow along each node's edges to network nodes outside this
+     * partition, which leaves whichever module the node is in. Zero unless
+     * this partition is of part of the network, see {@link #restrict(int[])}.
+     */
+    private final double[] externalFlows;
+
+    private final int[] outOffsets;
+
+    private final int[] outTargets;
+
+    private final double[] outFlows;
+
+    private final int[] inOffsets;
+
+    private final int[] inSources;
+
+    private final double[] inFlows;
+
+    /** The module of each node. */
+    private final int[] labels;
+
+    /** The number of nodes in each module. */
+    private final int[] moduleSizes;
+
+    /** The number of network nodes in each module. */
+    private final int[] moduleNetworkSizes;
+
+    private final double[] moduleFreqs;
+
+    /** The flow along the edges leaving each module. */
+    private final double[] moduleExitFlows;
+
+    private int numModules;
+
+    /**
+     * Builds the partition given by the modules, which must not have any
+     * nodes in common, over the given nodes. Modules get ids in the
+     * collection's iteration order, and nodes not in any of the modules are
+     * given modules of their own.
+     *
+     * @param nodes
+     *            the nodes, attached to the edges of their network
+     * @param modules
+     * @param teleportProb
+     */
+    public Partition(List<Node> nodes, Collection<Module> modules,
+        double teleportProb) {
+        this.nodes = nodes;
+        this.teleportProb = teleportProb;
+        int numNodes = nodes.size();
+        Map<Node, Integer> positions = new IdentityHashMap<Node, Integer>();
+        for (int i = 0; i < numNodes; i++) {
+            positions.put(nodes.get(i), i);
+        }
+        nodeFreqs = new double[numNodes];
+        nodeSizes = new int[numNodes];
+        Arrays.fill(nodeSizes, 1);
+        networkSize = numNodes;
+        externalFlows = new double[numNodes];
+        outOffsets = new int[numNodes + 1];
+        inOffsets = new int[numNodes + 1];
+        for (int i = 0; i < numNodes; i++) {
+            Node n = nodes.get(i);
+            nodeFreqs[i] = n.getRelativeFrequency();
+            int numOut = 0;
+            for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+                if (positions.containsKey(n.outNeighbor(e))) {
+                    numOut++;
+                }
+            }
+            int numIn = 0;
+            for (int e = n.inStart(), end = n.inEnd(); e < end; e++) {
+                if (positions.containsKey(n.inNeighbor(e))) {
+                    numIn++;
+                }
+            }
+            outOffsets[i + 1] = outOffsets[i] + numOut;
+            inOffsets[i + 1] = inOffsets[i] + numIn;
+        }
+        outTargets = new int[outOffsets[numNodes]];
+        outFlows = new double[outOffsets[numNodes]];
+        inSources = new int[inOffsets[numNodes]];
+        inFlows = new double[inOffsets[numNodes]];
+        for (int i = 0; i < numNodes; i++) {
+            Node n = nodes.get(i);
+            int f = outOffsets[i];
+            for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+                Integer pos = positions.get(n.outNeighbor(e));
+                if (pos != null) {
+                    outTargets[f] = pos;
+                    outFlows[f++] = n.outFlow(e);
+                }
+            }
+            f = inOffsets[i];
+            for (int e = n.inStart(), end = n.inEnd(); e < end; e++) {
+                Integer pos = positions.get(n.inNeighbor(e));
+                if (pos != null) {
+                    inSources[f] = pos;
+                    inFlows[f++] = n.inFlow(e);
+                }
+            }
+        }
+
+        labels = new int[numNodes];
+        moduleSizes = new int[numNodes];
+        moduleNetworkSizes = new int[numNodes];
+        moduleFreqs = new double[numNodes];
+        moduleExitFlows = new double[numNodes];
+        Arrays.fill(labels, -1);
+        int id = 0;
+        for (Module m : modules) {
+            boolean used = false;
+            for (Node n : m.getNodes()) {
+                Integer pos = positions.get(n);
+                if (pos != null) {
+                    labels[pos] = id;
+                    used = true;
+                }
+            }
+            if (used) {
+                id++;
+            }
+        }
+        for (int i = 0; i < numNodes; i++) {
+            if (labels[i] == -1) {
+                labels[i] = id++;
+            }
+        }
+        recalculate();
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param toCopy
+     */
+    private Partition(Partition toCopy) {
+        nodes = toCopy.nodes;
+        teleportProb = toCopy.teleportProb;
+        // Edges never change, so they're shared
+        nodeFreqs = toCopy.nodeFreqs;
+        nodeSizes = toCopy.nodeSizes;
+        networkSize = toCopy.networkSize;
+        externalFlows = toCopy.externalFlows;
+        outOffsets = toCopy.outOffsets;
+        outTargets = toCopy.outTargets;
+        outFlows = toCopy.outFlows;
+        inOffsets = toCopy.inOffsets;
+        inSources = toCopy.inSources;
+        inFlows = toCopy.inFlows;
+        labels = toCopy.labels.clone();
+        moduleSizes = toCopy.moduleSizes.clone();
+        moduleNetworkSizes = toCopy.moduleNetworkSizes.clone();
+        moduleFreqs = toCopy.moduleFreqs.clone();
+        moduleExitFlows = toCopy.moduleExitFlows.clone();
+        numModules = toCopy.numModules;
+    }
+
+    /**
+     * Builds a partition of part of a network, or of nodes standing for
+     * groups of network nodes, each node in a module of its own.
+     */
+    private Partition(List<Node> nodes, double teleportProb, int networkSize,
+        double[] nodeFreqs, int[] nodeSizes, double[] externalFlows,
+        int[] outOffsets, int[] outTargets, double[] outFlows,
+        int[] inOffsets, int[] inSources, double[] inFlows) {
+        int numNodes = nodeFreqs.length;
+        this.nodes = nodes;
+        this.teleportProb = teleportProb;
+        this.networkSize = networkSize;
+        this.nodeFreqs = nodeFreqs;
+        this.nodeSizes = nodeSizes;
+        this.externalFlows = externalFlows;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outFlows = outFlows;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.inFlows = inFlows;
+        labels = new int[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            labels[i] = i;
+        }
+        moduleSizes = new int[numNodes];
+        moduleNetworkSizes = new int[numNodes];
+        moduleFreqs = new double[numNodes];
+        moduleExitFlows = new double[numNodes];
+        recalculate();
+    }
+
+    /**
+     * Recomputes the per-module sizes, frequencies and exit flows from the
+     * labels, e.g. to discard accumulated rounding error.
+     */
+    public void recalculate() {
+        Arrays.fill(moduleSizes, 0);
+        Arrays.fill(moduleNetworkSizes, 0);
+        Arrays.fill(moduleFreqs, 0);
+        Arrays.fill(moduleExitFlows, 0);
+        numModules = 0;
+        for (int i = 0, n = labels.length; i < n; i++) {
+            int m = labels[i];
+            if (moduleSizes[m]++ == 0) {
+                numModules++;
+            }
+            moduleNetworkSizes[m] += nodeSizes[i];
+            moduleFreqs[m] += nodeFreqs[i];
+            moduleExitFlows[m] += externalFlows[i];
+            for (int e = outOffsets[i], end = outOffsets[i + 1]; e < end;
+                e++) {
+                if (labels[outTargets[e]] != m) {
+                    moduleExitFlows[m] += outFlows[e];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return an independent copy of this partition
+     */
+    public Partition copy() {
+        return new Partition(this);
+    }
+
+    /**
+     * Moves a node to another module, which may be empty. Costs time
+     * proportional to the degree of the node.
+     *
+     * @param node
+     * @param toModule
+     */
+    public void moveNode(int node, int toModule) {
+        int fromModule = labels[node];
+        if (fromModule == toModule) {
+            return;
+        }
+        double fromExit = exitFlowWithout(node);
+        double toExit = exitFlowWith(node, toModule);
+        moduleExitFlows[fromModule] = fromExit;
+        moduleExitFlows[toModule] = toExit;
+        moduleFreqs[fromModule] -= nodeFreqs[node];
+        moduleFreqs[toModule] += nodeFreqs[node];
+        moduleNetworkSizes[fromModule] -= nodeSizes[node];
+        moduleNetworkSizes[toModule] += nodeSizes[node];
+        if (--moduleSizes[fromModule] == 0) {
+            numModules--;
+            moduleFreqs[fromModule] = 0;
+            moduleExitFlows[fromModule] = 0;
+        }
+        if (moduleSizes[toModule]++ == 0) {
+            numModules++;
+        }
+        labels[node] = toModule;
+    }
+
+    /**
+     * @param node
+     *            a node which isn't in the module
+     * @param module
+     * @return the flow along edges leaving the module if the node were added
+     *         to it
+     */
+    private double exitFlowWith(int node, int module) {
+        double flow = moduleExitFlows[module] + externalFlows[node];
+        for (int e = outOffsets[node], end = outOffsets[node + 1]; e < end;
+            e++) {
+            int target = outTargets[e];
+            if (target != node && labels[target] != module) {
+                flow += outFlows[e];
+            }
+        }
+        for (int e = inOffsets[node], end = inOffsets[node + 1]; e < end;
+            e++) {
+            if (labels[inSources[e]] == module) {
+                flow -= inFlows[e];
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * @param node
+     * @return the flow along edges leaving the node's module if the node were
+     *         removed from it
+     */
+    private double exitFlowWithout(int node) {
+        int module = labels[node];
+        double flow = moduleExitFlows[module] - externalFlows[node];
+        for (int e = outOffsets[node], end = outOffsets[node + 1]; e < end;
+            e++) {
+            if (labels[outTargets[e]] != module) {
+                flow -= outFlows[e];
+            }
+        }
+        for (int e = inOffsets[node], end = inOffsets[node + 1]; e < end;
+            e++) {
+            int source = inSources[e];
+            if (source != node && labels[source] == module) {
+                flow += inFlows[e];
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * The exit probability of a module with the given size, total node
+     * frequency and flow along its out-going edges.
+     *
+     * @param size
+     *            the number of network nodes in the module
+     * @param sumFreqs
+     * @param edgeExitFlow
+     * @return
+     */
+    public double calcExitProb(int size, double sumFreqs,
+        double edgeExitFlow) {
+        return teleportProb * (networkSize - size) / (networkSize - 1)
+            * sumFreqs + (1 - teleportProb) * edgeExitFlow;
+    }
+
+    /**
+     * @param module
+     * @return the exit probability of the module, 0 if it is empty
+     */
+    public double getExitProb(int module) {
+        if (moduleSizes[module] == 0) {
+            return 0;
+        }
+        return calcExitProb(moduleNetworkSizes[module], moduleFreqs[module],
+            moduleExitFlows[module]);
+    }
+
+    /**
+     * @param node
+     * @param module
+     *            a module other than the node's own
+     * @return the exit probability the module would have if the node were
+     *         moved into it
+     */
+    public double calcExitProbWith(int node, int module) {
+        return calcExitProb(moduleNetworkSizes[module] + nodeSizes[node],
+            moduleFreqs[module] + nodeFreqs[node], exitFlowWith(node,
+                module));
+    }
+
+    /**
+     * @param node
+     * @return the exit probability the node's module would have if the node
+     *         were moved out of it, 0 if the module would be empty
+     */
+    public double calcExitProbWithout(int node) {
+        int module = labels[node];
+        if (moduleSizes[module] == 1) {
+            return 0;
+        }
+        return calcExitProb(moduleNetworkSizes[module] - nodeSizes[node],
+            moduleFreqs[module] - nodeFreqs[node], exitFlowWithout(node));
+    }
+
+    /**
+     * @return the ids of the modules with at least one node, in order
+     */
+    public int[] getModuleIds() {
+        int[] ids = new int[numModules];
+        for (int m = 0, k = 0; k < numModules; m++) {
+            if (moduleSizes[m] > 0) {
+                ids[k++] = m;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param module
+     * @return the positions of the nodes in the module, in order
+     */
+    public int[] getMembers(int module) {
+        int[] members = new int[moduleSizes[module]];
+        for (int i = 0, k = 0; k < members.length; i++) {
+            if (labels[i] == module) {
+                members[k++] = i;
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Aggregates each non-empty module into a single node, in order of module
+     * id, with the module's frequency and size; the edges between two
+     * modules become one edge carrying their total flow and edges within a
+     * module disappear. Every node of the result starts out in a module of
+     * its own, which have the same exit probabilities and frequencies as the
+     * modules of this partition, so the codelength is unchanged. Costs time
+     * proportional to the number of nodes and edges.
+     *
+     * @return the coarsened partition
+     */
+    public Partition coarsen() {
+        int numNodes = labels.length;
+        int[] ids = getModuleIds();
+        int numCoarse = ids.length;
+        int[] coarseOf = new int[numNodes];
+        for (int k = 0; k < numCoarse; k++) {
+            coarseOf[ids[k]] = k;
+        }
+        // Members of each module, by counting sort on the labels
+        int[] memberOffsets = new int[numCoarse + 1];
+        for (int i = 0; i < numNodes; i++) {
+            memberOffsets[coarseOf[labels[i]] + 1]++;
+        }
+        for (int k = 0; k < numCoarse; k++) {
+            memberOffsets[k + 1] += memberOffsets[k];
+        }
+        int[] members = new int[numNodes];
+        int[] fill = Arrays.copyOf(memberOffsets, numCoarse);
+        for (int i = 0; i < numNodes; i++) {
+            members[fill[coarseOf[labels[i]]]++] = i;
+        }
+        double[] coarseFreqs = new double[numCoarse];
+        int[] coarseSizes = new int[numCoarse];
+        double[] coarseExternal = new double[numCoarse];
+        int[] coarseOffsets = new int[numCoarse + 1];
+        int[] targets = new int[outTargets.length];
+        double[] flows = new double[outTargets.length];
+        // Accumulates the flow from one module to each other module
+        double[] flowTo = new double[numCoarse];
+        int[] touched = new int[numCoarse];
+        boolean[] isTouched = new boolean[numCoarse];
+        int numEdges = 0;
+        for (int k = 0; k < numCoarse; k++) {
+            coarseFreqs[k] = moduleFreqs[ids[k]];
+            coarseSizes[k] = moduleNetworkSizes[ids[k]];
+            int numTouched = 0;
+            for (int q = memberOffsets[k]; q < memberOffsets[k + 1]; q++) {
+                int i = members[q];
+                coarseExternal[k] += externalFlows[i];
+                for (int e = outOffsets[i], end = outOffsets[i + 1]; e < end;
+                    e++) {
+                    int target = coarseOf[labels[outTargets[e]]];
+                    if (target == k) {
+                        continue;
+                    }
+                    if (!isTouched[target]) {
+                        isTouched[target] = true;
+                        touched[numTouched++] = target;
+                    }
+                    flowTo[target] += outFlows[e];
+                }
+            }
+            Arrays.sort(touched, 0, numTouched);
+            for (int t = 0; t < numTouched; t++) {
+                int target = touched[t];
+                targets[numEdges] = target;
+                flows[numEdges++] = flowTo[target];
+                flowTo[target] = 0;
+                isTouched[target] = false;
+            }
+            coarseOffsets[k + 1] = numEdges;
+        }
+        targets = Arrays.copyOf(targets, numEdges);
+        flows = Arrays.copyOf(flows, numEdges);
+        // The in-coming edges are the transpose of the out-going ones
+        int[] coarseInOffsets = new int[numCoarse + 1];
+        for (int e = 0; e < numEdges; e++) {
+            coarseInOffsets[targets[e] + 1]++;
+        }
+        for (int k = 0; k < numCoarse; k++) {
+            coarseInOffsets[k + 1] += coarseInOffsets[k];
+        }
+        int[] sources = new int[numEdges];
+        double[] inFlowsCoarse = new double[numEdges];
+        fill = Arrays.copyOf(coarseInOffsets, numCoarse);
+        for (int k = 0; k < numCoarse; k++) {
+            for (int e = coarseOffsets[k]; e < coarseOffsets[k + 1]; e++) {
+                int f = fill[targets[e]]++;
+                sources[f] = k;
+                inFlowsCoarse[f] = flows[e];
+            }
+        }
+        return new Partition(null, teleportProb, networkSize, coarseFreqs,
+            coarseSizes, coarseExternal, coarseOffsets, targets, flows,
+            coarseInOffsets, sources, inFlowsCoarse);
+    }
+
+    /**
+     * Extracts the partition of some of the nodes, each in a module of its
+     * own, keeping only the edges between them. Flow along the edges to the
+     * other nodes still leaves any module, so exit probabilities (and node
+     * frequencies and sizes) are those of the whole network, which is what
+     * searching for submodules of a module needs. Costs time proportional to
+     * the number of nodes plus the number of edges of the given ones; to
+     * extract several groups, {@link #restrict(int[][])} does it in one
+     * pass.
+     *
+     * @param members
+     *            the positions of the nodes to keep, in order
+     * @return
+     */
+    public Partition restrict(int[] members) {
+        return restrict(new int[][] { members })[0];
+    }
+
+    /**
+     * Extracts the partitions of several disjoint groups of nodes at once,
+     * as {@link #restrict(int[])} would one at a time, keeping only the
+     * edges within each group. Costs time proportional to the number of
+     * nodes plus the number of edges of the grouped ones, however many
+     * groups there are.
+     *
+     * @param groups
+     *            the positions of the nodes of each group, in order; no node
+     *            may be in more than one group
+     * @return the partition of each group, in the same order
+     */
+    public Partition[] restrict(int[][] groups) {
+        // Which group each node is in, if any, and its position there
+        int[] groupOf = new int[labels.length];
+        int[] position = new int[labels.length];
+        Arrays.fill(groupOf, -1);
+        for (int g = 0; g < groups.length; g++) {
+            int[] members = groups[g];
+            for (int k = 0; k < members.length; k++) {
+                groupOf[members[k]] = g;
+                position[members[k]] = k;
+            }
+        }
+        Partition[] restricted = new Partition[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            restricted[g] = restrict(groups[g], g, groupOf, position);
+        }
+        return restricted;
+    }
+
+    /**
+     * @param members
+     *            the positions of the nodes of the group, in order
+     * @param group
+     *            the group's index
+     * @param groupOf
+     *            the group of every node, -1 for none
+     * @param position
+     *            the position of every grouped node within its group
+     * @return the partition of the group
+     */
+    private Partition restrict(int[] members, int group, int[] groupOf,
+        int[] position) {
+        int numMembers = members.length;
+        List<Node> subNodes = null;
+        if (nodes != null) {
+            subNodes = new ArrayList<Node>(numMembers);
+            for (int i : members) {
+                subNodes.add(nodes.get(i));
+            }
+        }
+        double[] subFreqs = new double[numMembers];
+        int[] subSizes = new int[numMembers];
+        double[] subExternal = new double[numMembers];
+        int[] subOutOffsets = new int[numMembers + 1];
+        int[] subInOffsets = new int[numMembers + 1];
+        for (int k = 0; k < numMembers; k++) {
+            int i = members[k];
+            subFreqs[k] = nodeFreqs[i];
+            subSizes[k] = nodeSizes[i];
+            subExternal[k] = externalFlows[i];
+            int numOut = 0;
+            for (int e = outOffsets[i], end = outOffsets[i + 1]; e < end;
+                e++) {
+                if (groupOf[outTargets[e]] == group) {
+                    numOut++;
+                } else {
+                    subExternal[k] += outFlows[e];
+                }
+            }
+            int numIn = 0;
+            for (int e = inOffsets[i], end = inOffsets[i + 1]; e < end;
+                e++) {
+                if (groupOf[inSources[e]] == group) {
+                    numIn++;
+                }
+            }
+            subOutOffsets[k + 1] = subOutOffsets[k] + numOut;
+            subInOffsets[k + 1] = subInOffsets[k] + numIn;
+        }
+        int[] subTargets = new int[subOutOffsets[numMembers]];
+        double[] subOutFlows = new double[subOutOffsets[numMembers]];
+        int[] subSources = new int[subInOffsets[numMembers]];
+        double[] subInFlows = new double[subInOffsets[numMembers]];
+        for (int k = 0; k < numMembers; k++) {
+            int i = members[k];
+            int f = subOutOffsets[k];
+            for (int e = outOffsets[i], end = outOffsets[i + 1]; e < end;
+                e++) {
+                if (groupOf[outTargets[e]] == group) {
+                    subTargets[f] = position[outTargets[e]];
+                    subOutFlows[f++] = outFlows[e];
+                }
+            }
+            f = subInOffsets[k];
+            for (int e = inOffsets[i], end = inOffsets[i + 1]; e < end;
+                e++) {
+                if (groupOf[inSources[e]] == group) {
+                    subSources[f] = position[inSources[e]];
+                    subInFlows[f++] = inFlows[e];
+                }
+            }
+        }
+        return new Partition(subNodes, teleportProb, networkSize, subFreqs,
+            subSizes, subExternal, subOutOffsets, subTargets, subOutFlows,
+            subInOffsets, subSources, subInFlows);
+    }
+
+    /**
+     * Moves the nodes of this partition so that its modules are those of a
+     * partition coarsened from it: every node ends up in the module of the
+     * node its module was aggregated into. Module ids are taken from the
+     * coarsened partition.
+     *
+     * @param coarse
+     *            a partition obtained from {@link #coarsen()} on this one,
+     *            whose nodes may since have been moved
+     */
+    public void project(Partition coarse) {
+        int[] ids = getModuleIds();
+        if (coarse.getNumNodes() != ids.length) {
+            throw new IllegalArgumentException("The coarsened partition has "
+                + coarse.getNumNodes() + " nodes but this one has "
+                + ids.length + " modules");
+        }
+        int[] coarseOf = new int[labels.length];
+        for (int k = 0; k < ids.length; k++) {
+            coarseOf[ids[k]] = k;
+        }
+        for (int i = 0, n = labels.length; i < n; i++) {
+            labels[i] = coarse.getModule(coarseOf[labels[i]]);
+        }
+        recalculate();
+    }
+
+    /**
+     * Materializes the partition as modules of the network's nodes, one per
+     * non-empty module in order of id. Only possible for a partition of the
+     * network's own nodes. Exit probabilities are those of the whole network
+     * even if this partition is of part of it.
+     *
+     * @return
+     */
+    public Set<Module> toModules() {
+        if (nodes == null) {
+            throw new IllegalStateException("A coarsened partition has no"
+                + " network nodes, project it onto the partition it was"
+                + " coarsened from instead");
+        }
+        Module[] modules = new Module[labels.length];
+        for (int i = 0, n = labels.length; i < n; i++) {
+            if (modules[labels[i]] == null) {
+                modules[labels[i]] = new Module(teleportProb);
+            }
+            modules[labels[i]].addNodeQuiet(nodes.get(i));
+        }
+        Set<Module> moduleSet = new LinkedHashSet<Module>();
+        for (Module m : modules) {
+            if (m != null) {
+                m.calcSumNodeFreqs();
+                m.calcExitProb(teleportProb, networkSize);
+                m.claimOwnershipOfChildren();
+                moduleSet.add(m);
+            }
+        }
+        return moduleSet;
+    }
+
+    public int getNumNodes() {
+        return labels.length;
+    }
+
+    public int getNumModules() {
+        return numModules;
+    }
+
+    /**
+     * @param node
+     * @return the id of the node's module
+     */
+    public int getModule(int node) {
+        return labels[node];
+    }
+
+    public int getModuleSize(int module) {
+        return moduleSizes[module];
+    }
+
+    public double getModuleFreq(int module) {
+        return moduleFreqs[module];
+    }
+
+    public double getNodeFreq(int node) {
+        return nodeFreqs[node];
+    }
+
+    /**
+     * @param node
+     * @return the network node at the given position, if this partition is
+     *         of the network's own nodes
+     */
+    public Node getNode(int node) {
+        if (nodes == null) {
+            throw new IllegalStateException("A coarsened partition has no"
+                + " network nodes");
+        }
+        return nodes.get(node);
+    }
+
+    public int getNodeSize(int node) {
+        return nodeSizes[node];
+    }
+
+    public int getModuleNetworkSize(int module) {
+        return moduleNetworkSizes[module];
+    }
+
+    public double getModuleExitFlow(int module) {
+        return moduleExitFlows[module];
+    }
+
+    public double getExternalFlow(int node) {
+        return externalFlows[node];
+    }
+
+    public int getNetworkSize() {
+        return networkSize;
+    }
+
+    public double getTeleportProb() {
+        return teleportProb;
+    }
+
+    public int outStart(int node) {
+        return outOffsets[node];
+    }
+
+    public int outEnd(int node) {
+        return outOffsets[node + 1];
+    }
+
+    public int outTarget(int edge) {
+        return outTargets[edge];
+    }
+
+    public double outFlow(int edge) {
+        return outFlows[edge];
+    }
+
+    public int inStart(int node) {
+        return inOffsets[node];
+    }
+
+    public int inEnd(int node) {
+        return inOffsets[node + 1];
+    }
+
+    public int inSource(int edge) {
+        return inSources[edge];
+    }
+
+    public double inFlow(int edge) {
+        return inFlows[edge];
+    }
+
+}
@@ -92,6 +92,31 @@ public class MatrixReader {
         return ReturnStatus.SUCCESS;
     }
 
+    /**
+     * Prepares a weight matrix for use as a random walker's transition
+     * matrix: checks that it is square, removes self-connections and, if any
+     * row sums to something other than zero or one, normalizes every row so
+     * that it sums to one. The matrix is modified in place.
+     *
+     * @param weightMat
+     *            the weight matrix to prepare
+     * @return the same matrix, now a (sub-)stochastic transition matrix
+     */
+    public static double[][] prepareTransitionMatrix(double[][] weightMat) {
+        if (squareCheck(weightMat).equals(ReturnStatus.FAILURE)) {
+            throw new IllegalArgumentException("Adjacency Matrix isn't square");
+        }
+        for (int i = 0, n = weightMat.length; i < n; i++) {
+            weightMat[i][i] = 0;
+        }
+        if (sanityCheck(weightMat).equals(ReturnStatus.FAILURE)) {
+            for (int i = 0, n = weightMat.length; i < n; i++) {
+                weightMat[i] = SimbrainMath.normalizeVec(weightMat[i]);
+            }
+        }
+        return weightMat;
+    }
+
     public enum ReturnStatus {
         SUCCESS, FAILURE;
     }
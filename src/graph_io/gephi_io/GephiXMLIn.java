@@ -24,6 +24,8 @@ package graph_io.gephi_io;
 import graph_elements.Module;
 import graph_elements.Network;
 import graph_elements.Node;
+import graph_operations.CostFunction;
+import graph_operations.TransitionMatrix;
 
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -31,8 +33,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Scanner;
 import java.util.Set;
 
@@ -64,8 +65,7 @@ public class GephiXMLIn {
                 scan.nextLine();
             }
             String line;
-            Set<Module> mods = Collections
-                .synchronizedSet(new HashSet<Module>());
+            Set<Module> mods = new LinkedHashSet<Module>();
             int depth = 0;
             int numNodes = 0;
             ArrayList<String> txtLines = new ArrayList<String>();
@@ -101,16 +101,25 @@ public class GephiXMLIn {
                     flatNodeList[n.getIndex()] = n;
                 }
             }
-            net = new Network(Arrays.asList(flatNodeList), mods);
+            TransitionMatrix.Builder edges =
+                new TransitionMatrix.Builder(numNodes);
             txtLines = new ArrayList<String>();
             do {
                 line = scan.nextLine();
                 txtLines.add(line);
                 if (scan.findInLine("</edge>") != null) {
-                    parseEdge(txtLines, flatNodeList);
+                    parseEdge(txtLines, edges);
                     txtLines = new ArrayList<String>();
                 }
             } while (scan.hasNextLine());
+            net = new Network(Arrays.asList(flatNodeList), mods,
+                edges.build());
+            // Exit probabilities need the edges, which weren't parsed yet
+            for (Module m : mods) {
+                m.calcExitProb(teleportProb, numNodes);
+            }
+            net.setHierarchicalEntropy(CostFunction.cost(mods,
+                net.getNodeEntropy()));
 
         } catch (IOException | NullPointerException
             | ArrayIndexOutOfBoundsException ex) {
@@ -120,23 +129,24 @@ public class GephiXMLIn {
         return net;
     }
 
-    public void parseEdge(ArrayList<String> lines, Node[] flatNodeList) {
-        Node src = null;
-        Node tar = null;
+    public void parseEdge(ArrayList<String> lines,
+        TransitionMatrix.Builder edges) {
+        int src = -1;
+        int tar = -1;
         for (String s : lines) {
             Scanner sc = new Scanner(s);
             sc.useDelimiter("[\"n\\s]+");
             if (sc.findInLine("<edge id=\"e") != null) {
                 sc.next();
                 sc.next();
-                src = flatNodeList[sc.nextInt()];
+                src = sc.nextInt();
                 sc.next();
-                tar = flatNodeList[sc.nextInt()];
+                tar = sc.nextInt();
             }
             if (sc.findInLine("attvalue for=") != null) {
                 sc.next();
                 sc.next();
-                src.addOutgoingEdge(tar, sc.nextDouble());
+                edges.addEdge(src, tar, sc.nextDouble());
                 sc.close();
                 break;
             }
@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -184,8 +185,10 @@ public class GephiXMLOut {
             pw.println("\t\t<edges>");
             int eId = 0;
             for (Node n : net.getFlatNodeList()) {
-                for (Node m : n.getTransferProbsOut().keySet()) {
-                    if (n.getTransferProbsOut().get(m) == 0.0) {
+                for (Map.Entry<Node, Double> edge : n.getTransferProbsOut()
+                    .entrySet()) {
+                    Node m = edge.getKey();
+                    if (edge.getValue() == 0.0) {
                         continue;
                     }
                     StringBuilder edgeSb =
@@ -200,7 +203,7 @@ public class GephiXMLOut {
                     pw.println("\t\t\t\t<attvalues>");
                     edgeSb = new StringBuilder("\t\t\t\t\t<attvalue " +
                         "for=\"weight\" value=\"");
-                    edgeSb.append(n.getTransferProbsOut().get(m));
+                    edgeSb.append(edge.getValue());
                     edgeSb.append("\"></attvalue>");
                     pw.println(edgeSb.toString());
                     pw.println("\t\t\t\t</attvalues>");
@@ -0,0 +1,139 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations;
+
+import java.util.SplittableRandom;
+
+/**
+ * Per-node alias tables (Vose's method) over the out-going edges of every node
+ * of a {@link TransitionMatrix}, allowing the target of a random walker's next
+ * step to be drawn in constant time regardless of the node's degree. Slots of
+ * the tables coincide with the out-edge indices of the matrix, so only the
+ * keep probability and alias of each edge are stored here. Instances are
+ * never modified after construction and so may be shared by any number of
+ * walker threads.
+ *
+ * @author Zach Tosi
+ */
+public class AliasTable {
+
+    private final TransitionMatrix transitions;
+
+    /** The probability of keeping an edge's own target. */
+    private final double[] prob;
+
+    /** The edge whose target is taken instead, otherwise. */
+    private final int[] alias;
+
+    /**
+     *
+     * @param transitions
+     */
+    public AliasTable(TransitionMatrix transitions) {
+        this.transitions = transitions;
+        prob = new double[transitions.getNumEdges()];
+        alias = new int[transitions.getNumEdges()];
+        for (int i = 0, n = transitions.getNumNodes(); i < n; i++) {
+            for (int e = transitions.outStart(i), end = transitions.outEnd(i);
+                e < end; e++) {
+                prob[e] = transitions.outWeight(e);
+            }
+            buildTable(transitions.outStart(i), transitions.outEnd(i));
+        }
+    }
+
+    /**
+     * Builds the table for the slots [start, end), which on entry hold the
+     * (not necessarily normalized) weights of the out-going edges.
+     *
+     * @param start
+     * @param end
+     */
+    private void buildTable(int start, int end) {
+        int degree = end - start;
+        if (degree == 0) {
+            return;
+        }
+        double sum = 0;
+        for (int k = start; k < end; k++) {
+            sum += prob[k];
+        }
+        int[] small = new int[degree];
+        int[] large = new int[degree];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int k = start; k < end; k++) {
+            prob[k] = prob[k] * degree / sum;
+            alias[k] = k;
+            if (prob[k] < 1) {
+                small[numSmall++] = k;
+            } else {
+                large[numLarge++] = k;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            alias[s] = l;
+            prob[l] = (prob[l] + prob[s]) - 1;
+            if (prob[l] < 1) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+        // Whatever remains is (up to rounding error) exactly one.
+        while (numLarge > 0) {
+            prob[large[--numLarge]] = 1;
+        }
+        while (numSmall > 0) {
+            prob[small[--numSmall]] = 1;
+        }
+    }
+
+    /**
+     * Draws the target of a step from the given node.
+     *
+     * @param node
+     * @param rand
+     *            the calling walker's own random number stream
+     * @return the index of the target node, or -1 if the node has no
+     *         out-going edges
+     */
+    public int sample(int node, SplittableRandom rand) {
+        int start = transitions.outStart(node);
+        int degree = transitions.outEnd(node) - start;
+        if (degree == 0) {
+            return -1;
+        }
+        int k = start + rand.nextInt(degree);
+        if (rand.nextDouble() < prob[k]) {
+            return transitions.outTarget(k);
+        }
+        return transitions.outTarget(alias[k]);
+    }
+
+    public int getNumNodes() {
+        return transitions.getNumNodes();
+    }
+
+}
@@ -22,19 +22,416 @@
 package graph_operations;
 
 import graph_elements.Module;
+import graph_elements.ModuleTree;
+import graph_elements.Partition;
 
 import java.util.Collection;
 
 import math.SimbrainMath;
 
 /**
- * A class containing the infomap cost function.
+ * A class containing the infomap cost function. Besides scoring a whole
+ * partition statically, an instance can track a partition as it changes by
+ * keeping running sums of the module terms, which lets the change in
+ * codelength caused by merging two modules or moving a node between two
+ * modules be computed in constant time from the exit probabilities and
+ * frequencies of just the modules involved.
  * 
  * @author Zach Tosi
  *
  */
 public final class CostFunction {
 
+    private final double nodeEntropy;
+
+    /**
+     * The exit probability of the module whose submodules are being tracked,
+     * which shares their index codebook; zero for the modules of a whole
+     * network, whose index codebook has no exit.
+     */
+    private final double parentExit;
+
+    /** Sum over modules of exit probability. */
+    private double sumExit;
+
+    /** Sum over modules of exitProb * log_2(exitProb). */
+    private double sumExitLogExit;
+
+    /**
+     * Sum over modules of (exitProb + sum of node frequencies) * log_2(same).
+     */
+    private double sumTotalLogTotal;
+
+    /**
+     * 
+     * @param partitioning
+     *            the initial partition to be tracked
+     * @param nodeEntropy
+     *            the (positive) entropy of the node frequencies
+     */
+    public CostFunction(Collection<Module> partitioning, double nodeEntropy) {
+        this.nodeEntropy = nodeEntropy;
+        this.parentExit = 0;
+        recalculate(partitioning);
+    }
+
+    /**
+     * 
+     * @param partition
+     *            the initial partition to be tracked
+     * @param nodeEntropy
+     *            the (positive) entropy of the node frequencies
+     */
+    public CostFunction(Partition partition, double nodeEntropy) {
+        this(partition, nodeEntropy, 0);
+    }
+
+    /**
+     * Tracks a partition of the nodes of one module into submodules, the
+     * codelength being that of the module's codebook (entering each
+     * submodule or exiting the module) plus those of the submodules, i.e.
+     * the module's part of the hierarchical map equation.
+     *
+     * @param partition
+     *            the initial partition to be tracked, see
+     *            {@link Partition#restrict(int[])}
+     * @param nodeEntropy
+     *            the (positive) entropy of the frequencies of the module's
+     *            nodes
+     * @param parentExit
+     *            the exit probability of the module
+     */
+    public CostFunction(Partition partition, double nodeEntropy,
+        double parentExit) {
+        this.nodeEntropy = nodeEntropy;
+        this.parentExit = parentExit;
+        recalculate(partition);
+    }
+
+    /**
+     * Tracks a partition built up one module at a time with
+     * {@link #addModule(double, double)}, e.g. one whose "nodes" are modules
+     * coded by their entry rates rather than network nodes.
+     *
+     * @param nodeEntropy
+     *            the (positive) entropy of the node frequencies
+     * @param parentExit
+     *            the exit probability of the module whose submodules are
+     *            tracked, zero for the whole network
+     */
+    public CostFunction(double nodeEntropy, double parentExit) {
+        this.nodeEntropy = nodeEntropy;
+        this.parentExit = parentExit;
+    }
+
+    /**
+     * Adds a module to the running sums.
+     *
+     * @param exit
+     * @param freq
+     */
+    public void addModule(double exit, double freq) {
+        update(0, 0, 0, 0, exit, freq, 0, 0);
+    }
+
+    /**
+     * Recomputes the running sums from scratch, e.g. to discard accumulated
+     * rounding error or after the partition was changed behind this object's
+     * back.
+     * 
+     * @param partitioning
+     */
+    public void recalculate(Collection<Module> partitioning) {
+        sumExit = 0;
+        sumExitLogExit = 0;
+        sumTotalLogTotal = 0;
+        for (Module m : partitioning) {
+            sumExit += m.getExitProbability();
+            sumExitLogExit += plogp(m.getExitProbability());
+            sumTotalLogTotal += plogp(m.getExitProbability()
+                + m.getSumNodeFrequencies());
+        }
+    }
+
+    /**
+     * Recomputes the running sums from scratch from a compact partition.
+     * 
+     * @param partition
+     */
+    public void recalculate(Partition partition) {
+        sumExit = 0;
+        sumExitLogExit = 0;
+        sumTotalLogTotal = 0;
+        for (int m : partition.getModuleIds()) {
+            double exit = partition.getExitProb(m);
+            sumExit += exit;
+            sumExitLogExit += plogp(exit);
+            sumTotalLogTotal += plogp(exit + partition.getModuleFreq(m));
+        }
+    }
+
+    /**
+     * @return the codelength of the tracked partition
+     */
+    public double getCodelength() {
+        return plogp(parentExit + sumExit) - plogp(parentExit) - 2
+            * sumExitLogExit + nodeEntropy + sumTotalLogTotal;
+    }
+
+    /**
+     * The change in codelength if two modules were replaced by two others.
+     * Any of the modules may be empty (zero exit probability and frequency),
+     * so this covers both merges and moves of nodes between modules.
+     * 
+     * @param oldExit1
+     * @param oldFreq1
+     * @param oldExit2
+     * @param oldFreq2
+     * @param newExit1
+     * @param newFreq1
+     * @param newExit2
+     * @param newFreq2
+     * @return the new codelength minus the current one
+     */
+    public double delta(double oldExit1, double oldFreq1, double oldExit2,
+        double oldFreq2, double newExit1, double newFreq1, double newExit2,
+        double newFreq2) {
+        double newSumExit = sumExit + newExit1 + newExit2 - oldExit1
+            - oldExit2;
+        double dExitLogExit = plogp(newExit1) + plogp(newExit2)
+            - plogp(oldExit1) - plogp(oldExit2);
+        double dTotalLogTotal = plogp(newExit1 + newFreq1)
+            + plogp(newExit2 + newFreq2) - plogp(oldExit1 + oldFreq1)
+            - plogp(oldExit2 + oldFreq2);
+        return plogp(parentExit + newSumExit) - plogp(parentExit + sumExit)
+            - 2 * dExitLogExit + dTotalLogTotal;
+    }
+
+    /**
+     * The change in codelength if the two modules were merged.
+     * 
+     * @param m1
+     * @param m2
+     * @param mergedExit
+     *            the exit probability of the merged module
+     * @return
+     */
+    public double deltaMerge(Module m1, Module m2, double mergedExit) {
+        return delta(m1.getExitProbability(), m1.getSumNodeFrequencies(),
+            m2.getExitProbability(), m2.getSumNodeFrequencies(), mergedExit,
+            m1.getSumNodeFrequencies() + m2.getSumNodeFrequencies(), 0, 0);
+    }
+
+    /**
+     * The part of {@link #deltaMerge} which depends only on the two modules:
+     * the change in codelength were they merged, leaving out that of the
+     * term shared by all modules, see {@link #deltaSumExit(double)}. Stays
+     * valid for as long as neither module changes, whatever other modules
+     * do.
+     * 
+     * @param m1
+     * @param m2
+     * @param mergedExit
+     *            the exit probability of the merged module
+     * @return
+     */
+    public double deltaMergeLocal(Module m1, Module m2, double mergedExit) {
+        double exit1 = m1.getExitProbability();
+        double exit2 = m2.getExitProbability();
+        double freq1 = m1.getSumNodeFrequencies();
+        double freq2 = m2.getSumNodeFrequencies();
+        return -2 * (plogp(mergedExit) - plogp(exit1) - plogp(exit2))
+            + plogp(mergedExit + freq1 + freq2) - plogp(exit1 + freq1)
+            - plogp(exit2 + freq2);
+    }
+
+    /**
+     * The change in the term of the codelength shared by all modules, were
+     * the sum of their exit probabilities to change by the given amount. A
+     * merger's change in codelength is this, for the merged module's exit
+     * probability minus those of the two, plus
+     * {@link #deltaMergeLocal(Module, Module, double)}.
+     * 
+     * @param change
+     * @return
+     */
+    public double deltaSumExit(double change) {
+        return plogp(parentExit + sumExit + change)
+            - plogp(parentExit + sumExit);
+    }
+
+    /**
+     * @return the sum of the exit probabilities of the modules
+     */
+    public double getSumExit() {
+        return sumExit;
+    }
+
+    /**
+     * The change in codelength if a node with the given frequency were moved
+     * from one module to another.
+     * 
+     * @param from
+     * @param to
+     * @param nodeFreq
+     * @param newFromExit
+     *            the exit probability of the source module without the node
+     * @param newToExit
+     *            the exit probability of the target module with the node
+     * @return
+     */
+    public double deltaMove(Module from, Module to, double nodeFreq,
+        double newFromExit, double newToExit) {
+        return delta(from.getExitProbability(), from.getSumNodeFrequencies(),
+            to.getExitProbability(), to.getSumNodeFrequencies(), newFromExit,
+            from.getSumNodeFrequencies() - nodeFreq, newToExit,
+            to.getSumNodeFrequencies() + nodeFreq);
+    }
+
+    /**
+     * The change in codelength if a node of a compact partition were moved
+     * to another module.
+     * 
+     * @param partition
+     * @param node
+     * @param toModule
+     * @param newFromExit
+     *            the exit probability of the node's module without it
+     * @param newToExit
+     *            the exit probability of the target module with the node
+     * @return
+     */
+    public double deltaMove(Partition partition, int node, int toModule,
+        double newFromExit, double newToExit) {
+        int fromModule = partition.getModule(node);
+        double nodeFreq = partition.getNodeFreq(node);
+        return delta(partition.getExitProb(fromModule),
+            partition.getModuleFreq(fromModule),
+            partition.getExitProb(toModule),
+            partition.getModuleFreq(toModule), newFromExit,
+            partition.getModuleFreq(fromModule) - nodeFreq, newToExit,
+            partition.getModuleFreq(toModule) + nodeFreq);
+    }
+
+    /**
+     * Updates the running sums after two modules have been replaced by two
+     * others, see {@link #delta}.
+     */
+    public void update(double oldExit1, double oldFreq1, double oldExit2,
+        double oldFreq2, double newExit1, double newFreq1, double newExit2,
+        double newFreq2) {
+        sumExit += newExit1 + newExit2 - oldExit1 - oldExit2;
+        sumExitLogExit += plogp(newExit1) + plogp(newExit2) - plogp(oldExit1)
+            - plogp(oldExit2);
+        sumTotalLogTotal += plogp(newExit1 + newFreq1)
+            + plogp(newExit2 + newFreq2) - plogp(oldExit1 + oldFreq1)
+            - plogp(oldExit2 + oldFreq2);
+    }
+
+    /**
+     * Updates the running sums after two modules have been merged. Must be
+     * called with the exit probabilities and frequencies from before the
+     * merge.
+     * 
+     * @param m1
+     * @param m2
+     * @param mergedExit
+     */
+    public void applyMerge(Module m1, Module m2, double mergedExit) {
+        update(m1.getExitProbability(), m1.getSumNodeFrequencies(),
+            m2.getExitProbability(), m2.getSumNodeFrequencies(), mergedExit,
+            m1.getSumNodeFrequencies() + m2.getSumNodeFrequencies(), 0, 0);
+    }
+
+    /**
+     * Updates the running sums after a node has been moved. Must be called
+     * with the exit probabilities and frequencies from before the move.
+     * 
+     * @param from
+     * @param to
+     * @param nodeFreq
+     * @param newFromExit
+     * @param newToExit
+     */
+    public void applyMove(Module from, Module to, double nodeFreq,
+        double newFromExit, double newToExit) {
+        update(from.getExitProbability(), from.getSumNodeFrequencies(),
+            to.getExitProbability(), to.getSumNodeFrequencies(), newFromExit,
+            from.getSumNodeFrequencies() - nodeFreq, newToExit,
+            to.getSumNodeFrequencies() + nodeFreq);
+    }
+
+    /**
+     * Updates the running sums after a node of a compact partition has been
+     * moved. Must be called before the partition itself is changed.
+     * 
+     * @param partition
+     * @param node
+     * @param toModule
+     * @param newFromExit
+     * @param newToExit
+     */
+    public void applyMove(Partition partition, int node, int toModule,
+        double newFromExit, double newToExit) {
+        int fromModule = partition.getModule(node);
+        double nodeFreq = partition.getNodeFreq(node);
+        update(partition.getExitProb(fromModule),
+            partition.getModuleFreq(fromModule),
+            partition.getExitProb(toModule),
+            partition.getModuleFreq(toModule), newFromExit,
+            partition.getModuleFreq(fromModule) - nodeFreq, newToExit,
+            partition.getModuleFreq(toModule) + nodeFreq);
+    }
+
+    /**
+     * @param p
+     * @return p * log_2(p), taken to be zero when p is zero
+     */
+    public static double plogp(double p) {
+        return p > 0 ? p * SimbrainMath.log2(p) : 0;
+    }
+
+    /**
+     * The codelength of a hierarchy of modules according to the hierarchical
+     * map equation: the root's index codebook codes entering each top level
+     * module, the codebook of a module split into submodules codes entering
+     * each of them or exiting the module, and the codebook of a leaf module
+     * codes visiting each of its nodes or exiting it. For a tree of depth one
+     * this is the same as {@link #cost(Collection, double)}.
+     * 
+     * @param tree
+     * @param nodeEntropy
+     *            the (positive) entropy of the node frequencies
+     * @return
+     */
+    public static double cost(ModuleTree tree, double nodeEntropy) {
+        return codebookLengths(tree) + nodeEntropy;
+    }
+
+    /**
+     * @return the rate times entropy of the codebooks of the tree's module
+     *         and every module below it, less the node entropy
+     */
+    private static double codebookLengths(ModuleTree tree) {
+        double exit = tree.getExitProbability();
+        if (tree.isLeaf()) {
+            Module m = tree.getModule();
+            return m == null ? 0 : plogp(exit + m.getSumNodeFrequencies())
+                - plogp(exit);
+        }
+        double sumEnter = 0;
+        double sumEnterLogEnter = 0;
+        double below = 0;
+        for (ModuleTree sub : tree.getSubmodules()) {
+            double enter = sub.getExitProbability();
+            sumEnter += enter;
+            sumEnterLogEnter += plogp(enter);
+            below += codebookLengths(sub);
+        }
+        return plogp(exit + sumEnter) - plogp(exit) - sumEnterLogEnter
+            + below;
+    }
+
     /**
      * The third term here differs from reference paper, in that the node
      * entropy as a whole term (which includes a negative value to reverse the
@@ -0,0 +1,317 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations;
+
+import graph_elements.Module;
+import graph_elements.Node;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A sparse table of the modules of a partition which are connected by at
+ * least one edge, along with the total flow between each connected pair (in
+ * both directions). It is built once from the edge flows of the nodes and is
+ * then kept up to date as modules are merged or nodes are moved, so checking
+ * whether two modules are connected, getting the flow between them or
+ * listing the modules connected to a module are all lookups which allocate
+ * nothing. Iteration orders are insertion orders so that searches which
+ * enumerate candidates from the table are repeatable.
+ *
+ * Not thread safe: lookups may run concurrently with one another, but not
+ * with updates.
+ *
+ * @author Zach Tosi
+ */
+public final class ModuleFlowTable {
+
+    /** The module each node belongs to. */
+    private final Map<Node, Module> owners =
+        new IdentityHashMap<Node, Module>();
+
+    /**
+     * The connections of each module having any. Both directions of each
+     * pair share the same link.
+     */
+    private final Map<Module, Map<Module, Link>> links =
+        new LinkedHashMap<Module, Map<Module, Link>>();
+
+    /**
+     *
+     * @param partitioning
+     *            the modules of the partition to be tracked, which must not
+     *            have any nodes in common
+     */
+    public ModuleFlowTable(Collection<Module> partitioning) {
+        for (Module m : partitioning) {
+            for (Node n : m.getNodes()) {
+                owners.put(n, m);
+            }
+        }
+        for (Module m : partitioning) {
+            for (Node n : m.getNodes()) {
+                for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+                    Module other = owners.get(n.outNeighbor(e));
+                    if (other != null && other != m) {
+                        addFlow(m, other, n.outFlow(e), 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param m1
+     * @param m2
+     * @return true if there is an edge in either direction between the two
+     *         modules
+     */
+    public boolean areConnected(Module m1, Module m2) {
+        Map<Module, Link> neighbors = links.get(m1);
+        return neighbors != null && neighbors.containsKey(m2);
+    }
+
+    /**
+     * @param m1
+     * @param m2
+     * @return the total flow along the edges between the two modules in
+     *         either direction, 0 if they aren't connected
+     */
+    public double getFlowBetween(Module m1, Module m2) {
+        Map<Module, Link> neighbors = links.get(m1);
+        if (neighbors == null) {
+            return 0;
+        }
+        Link link = neighbors.get(m2);
+        return link == null ? 0 : link.flow;
+    }
+
+    /**
+     * @param m1
+     * @param m2
+     * @return the number of edges between the two modules in either
+     *         direction
+     */
+    public int getNumEdgesBetween(Module m1, Module m2) {
+        Map<Module, Link> neighbors = links.get(m1);
+        if (neighbors == null) {
+            return 0;
+        }
+        Link link = neighbors.get(m2);
+        return link == null ? 0 : link.numEdges;
+    }
+
+    /**
+     * @param m
+     * @return a read-only view of the modules connected to m
+     */
+    public Set<Module> getNeighbors(Module m) {
+        Map<Module, Link> neighbors = links.get(m);
+        if (neighbors == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(neighbors.keySet());
+    }
+
+    /**
+     * @param n
+     * @return the module n belongs to according to this table
+     */
+    public Module getModule(Node n) {
+        return owners.get(n);
+    }
+
+    /**
+     * Records that two modules have been merged. Costs time proportional to
+     * the number of modules connected to either of them plus the number of
+     * nodes whose owner changes.
+     *
+     * @param m1
+     * @param m2
+     * @param merged
+     *            the module holding the nodes of both, which may be m1 or m2
+     *            itself if the merge was done in place
+     */
+    public void merge(Module m1, Module m2, Module merged) {
+        Map<Module, Link> mergedLinks = new LinkedHashMap<Module, Link>();
+        collectLinks(m1, m2, mergedLinks);
+        collectLinks(m2, m1, mergedLinks);
+        for (Map.Entry<Module, Link> ent : mergedLinks.entrySet()) {
+            links.get(ent.getKey()).put(merged, ent.getValue());
+        }
+        if (!mergedLinks.isEmpty()) {
+            links.put(merged, mergedLinks);
+        }
+        if (merged != m1) {
+            claimNodes(m1, merged);
+        }
+        if (merged != m2) {
+            claimNodes(m2, merged);
+        }
+    }
+
+    /**
+     * Removes all of m's links, folding those to modules other than
+     * exclude into the given map.
+     */
+    private void collectLinks(Module m, Module exclude,
+        Map<Module, Link> mergedLinks) {
+        Map<Module, Link> neighbors = links.remove(m);
+        if (neighbors == null) {
+            return;
+        }
+        for (Map.Entry<Module, Link> ent : neighbors.entrySet()) {
+            Module other = ent.getKey();
+            links.get(other).remove(m);
+            if (other == exclude) {
+                continue;
+            }
+            Link link = mergedLinks.get(other);
+            if (link == null) {
+                mergedLinks.put(other, ent.getValue());
+            } else {
+                link.flow += ent.getValue().flow;
+                link.numEdges += ent.getValue().numEdges;
+            }
+        }
+    }
+
+    /**
+     * Records that a module has been replaced, e.g. by a copy of itself,
+     * keeping its connections. The nodes of the replacement are claimed by
+     * it. Costs time proportional to its size and number of connections.
+     *
+     * @param old
+     * @param replacement
+     */
+    public void replace(Module old, Module replacement) {
+        if (old == replacement) {
+            return;
+        }
+        Map<Module, Link> neighbors = links.remove(old);
+        if (neighbors != null) {
+            for (Map.Entry<Module, Link> ent : neighbors.entrySet()) {
+                Map<Module, Link> otherLinks = links.get(ent.getKey());
+                otherLinks.remove(old);
+                otherLinks.put(replacement, ent.getValue());
+            }
+            links.put(replacement, neighbors);
+        }
+        claimNodes(replacement, replacement);
+    }
+
+    /**
+     * Records that a node has moved from one module to another. Costs time
+     * proportional to the degree of the node. The modules themselves are not
+     * looked at, so this may be called before or after the move is made.
+     *
+     * @param n
+     * @param from
+     * @param to
+     */
+    public void moveNode(Node n, Module from, Module to) {
+        if (from == to) {
+            return;
+        }
+        for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+            moveEdge(n, n.outNeighbor(e), n.outFlow(e), from, to);
+        }
+        for (int e = n.inStart(), end = n.inEnd(); e < end; e++) {
+            moveEdge(n, n.inNeighbor(e), n.inFlow(e), from, to);
+        }
+        owners.put(n, to);
+    }
+
+    /**
+     * Moves one edge of n, whose other end is the given node, from n's old
+     * module to its new one.
+     */
+    private void moveEdge(Node n, Node otherEnd, double flow, Module from,
+        Module to) {
+        Module other = otherEnd == n ? null : owners.get(otherEnd);
+        if (other == null) {
+            return;
+        }
+        if (other != from) {
+            addFlow(from, other, -flow, -1);
+        }
+        if (other != to) {
+            addFlow(to, other, flow, 1);
+        }
+    }
+
+    /**
+     * Adds flow and edges to the link between two distinct modules, creating
+     * it if need be and dropping it once it has no edges left.
+     */
+    private void addFlow(Module m1, Module m2, double flow, int numEdges) {
+        Map<Module, Link> neighbors1 = links.get(m1);
+        if (neighbors1 == null) {
+            neighbors1 = new LinkedHashMap<Module, Link>();
+            links.put(m1, neighbors1);
+        }
+        Link link = neighbors1.get(m2);
+        if (link == null) {
+            link = new Link();
+            neighbors1.put(m2, link);
+            Map<Module, Link> neighbors2 = links.get(m2);
+            if (neighbors2 == null) {
+                neighbors2 = new LinkedHashMap<Module, Link>();
+                links.put(m2, neighbors2);
+            }
+            neighbors2.put(m1, link);
+        }
+        link.flow += flow;
+        link.numEdges += numEdges;
+        if (link.numEdges == 0) {
+            neighbors1.remove(m2);
+            Map<Module, Link> neighbors2 = links.get(m2);
+            neighbors2.remove(m1);
+            if (neighbors1.isEmpty()) {
+                links.remove(m1);
+            }
+            if (neighbors2.isEmpty()) {
+                links.remove(m2);
+            }
+        }
+    }
+
+    private void claimNodes(Module m, Module owner) {
+        for (Node n : m.getNodes()) {
+            owners.put(n, owner);
+        }
+    }
+
+    /** The flow and number of edges between a pair of modules. */
+    private static final class Link {
+
+        private double flow;
+
+        private int numEdges;
+
+    }
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations;
+
+import concurrency_tools.WorkStealingExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the stationary visit frequencies of a random walker with
+ * teleportation directly, by power iteration over the sparse
+ * {@link TransitionMatrix}, rather than by simulating walkers (see
+ * {@link RandomWalker}). The walker modeled is the same: with probability
+ * teleportProb it jumps to a node chosen uniformly at random, otherwise it
+ * follows an out-going edge in proportion to its weight, and from a node with
+ * no out-going edges it always jumps.
+ *
+ * Each iteration pulls flow along in-coming edges, so the rows of the new
+ * frequency vector are split into contiguous blocks which are computed in
+ * parallel without any shared writes. Sums over the whole vector are always
+ * taken serially and in the same order, so the result does not depend on the
+ * number of threads and is identical from run to run. Blocks are run on a
+ * caller's executor or, by default, on
+ * {@link WorkStealingExecutor#commonPool()}, so no threads are created per
+ * solve.
+ *
+ * @author Zach Tosi
+ */
+public class PowerIteration {
+
+    /** Iteration stops when the L1 change in frequencies drops below this. */
+    public static final double DEFAULT_TOLERANCE = 1E-12;
+
+    /** Iteration stops after this many iterations regardless. */
+    public static final int DEFAULT_MAX_ITERATIONS = 10000;
+
+    private final TransitionMatrix transitions;
+
+    private final int numNodes;
+
+    private double teleportProb;
+
+    private double[] freqs;
+
+    private double[] nextFreqs;
+
+    private double danglingFlow;
+
+    /** Blocks of rows, one per thread, each computed by one task. */
+    private final List<Callable<Object>> blocks;
+
+    /** The number of iterations taken by the most recent solve. */
+    private int iterations;
+
+    /**
+     *
+     * @param transitions
+     *            the shared, read-only transition matrix
+     * @param teleportProb
+     *            the probability of teleporting at each step
+     */
+    public PowerIteration(TransitionMatrix transitions, double teleportProb) {
+        this.transitions = transitions;
+        this.teleportProb = teleportProb;
+        numNodes = transitions.getNumNodes();
+        freqs = new double[numNodes];
+        nextFreqs = new double[numNodes];
+        blocks = partitionRows(Math.min(numNodes,
+            Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Iterates from the uniform distribution until the L1 change between
+     * successive iterations is below the tolerance or the iteration cap is
+     * reached.
+     *
+     * @param tolerance
+     * @param maxIterations
+     * @return the stationary visit frequencies, which sum to one
+     */
+    public double[] solve(double tolerance, int maxIterations) {
+        return solve(null, tolerance, maxIterations);
+    }
+
+    /**
+     * Iterates from the given frequencies, for instance the solution for a
+     * similar teleportation probability or matrix, until the L1 change between
+     * successive iterations is below the tolerance or the iteration cap is
+     * reached. The closer the starting point is to the solution the fewer
+     * iterations are needed.
+     *
+     * @param initialFreqs
+     *            the frequencies to start from, or null to start from the
+     *            uniform distribution
+     * @param tolerance
+     * @param maxIterations
+     * @return the stationary visit frequencies, which sum to one
+     */
+    public double[] solve(double[] initialFreqs, double tolerance,
+        int maxIterations) {
+        return solve(initialFreqs, tolerance, maxIterations,
+            WorkStealingExecutor.commonPool());
+    }
+
+    /**
+     * As {@link #solve(double[], double, int)}, computing blocks of rows on
+     * the given executor (unless there is only one block, which is computed
+     * on the calling thread).
+     *
+     * @param initialFreqs
+     * @param tolerance
+     * @param maxIterations
+     * @param taskExecutor
+     *            a pool whose invokeAll doesn't starve when called from one
+     *            of its own threads (as those of ForkJoinPool and
+     *            WorkStealingExecutor don't) if the caller runs on it
+     * @return the stationary visit frequencies, which sum to one
+     * @throws CompletionException
+     *             if the computation fails or is interrupted
+     */
+    public double[] solve(double[] initialFreqs, double tolerance,
+        int maxIterations, ExecutorService taskExecutor) {
+        if (initialFreqs == null) {
+            Arrays.fill(freqs, 1.0 / numNodes);
+        } else {
+            if (initialFreqs.length != numNodes) {
+                throw new IllegalArgumentException("Initial frequencies do"
+                    + " not match the size of the transition matrix");
+            }
+            double sum = 0;
+            for (int i = 0; i < numNodes; i++) {
+                sum += initialFreqs[i];
+            }
+            for (int i = 0; i < numNodes; i++) {
+                freqs[i] = initialFreqs[i] / sum;
+            }
+        }
+        danglingFlow = calcDanglingFlow();
+        iterations = 0;
+        try {
+            double change = Double.POSITIVE_INFINITY;
+            while (iterations < maxIterations && change > tolerance) {
+                if (blocks.size() == 1) {
+                    pullFlow(0, numNodes);
+                } else {
+                    for (Future<Object> f : taskExecutor.invokeAll(blocks)) {
+                        f.get();
+                    }
+                }
+                change = normalizeAndSwap();
+                iterations++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+        return Arrays.copyOf(freqs, numNodes);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public double getTeleportProb() {
+        return teleportProb;
+    }
+
+    public void setTeleportProb(double teleportProb) {
+        this.teleportProb = teleportProb;
+    }
+
+    /**
+     * Splits the rows into contiguous blocks holding roughly equal numbers of
+     * in-edges, one block per thread.
+     *
+     * @param numBlocks
+     * @return
+     */
+    private List<Callable<Object>> partitionRows(int numBlocks) {
+        List<Callable<Object>> blocks = new ArrayList<Callable<Object>>();
+        final double edgesPerBlock = (double) (transitions.getNumEdges()
+            + numNodes) / numBlocks;
+        int start = 0;
+        for (int b = 1; b <= numBlocks && start < numNodes; b++) {
+            int end = start + 1;
+            while (end < numNodes
+                && transitions.inStart(end) + end < b * edgesPerBlock) {
+                end++;
+            }
+            if (b == numBlocks) {
+                end = numNodes;
+            }
+            final int from = start;
+            final int to = end;
+            blocks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    pullFlow(from, to);
+                    return null;
+                }
+            });
+            start = end;
+        }
+        return blocks;
+    }
+
+    /**
+     * Computes the next frequency of nodes [from, to). Teleportation and
+     * jumps from dangling nodes land uniformly, everything else arrives along
+     * in-coming edges.
+     *
+     * @param from
+     * @param to
+     */
+    private void pullFlow(int from, int to) {
+        final double walk = 1 - teleportProb;
+        final double base = (teleportProb + walk * danglingFlow) / numNodes;
+        for (int j = from; j < to; j++) {
+            double inFlow = 0;
+            for (int e = transitions.inStart(j), end = transitions.inEnd(j);
+                e < end; e++) {
+                inFlow += transitions.inWeight(e)
+                    * freqs[transitions.inSource(e)];
+            }
+            nextFreqs[j] = base + walk * inFlow;
+        }
+    }
+
+    /**
+     * Normalizes the newly computed frequencies, makes them current and
+     * returns their L1 distance from the previous ones.
+     *
+     * @return
+     */
+    private double normalizeAndSwap() {
+        double sum = 0;
+        for (int i = 0; i < numNodes; i++) {
+            sum += nextFreqs[i];
+        }
+        double change = 0;
+        for (int i = 0; i < numNodes; i++) {
+            nextFreqs[i] /= sum;
+            change += Math.abs(nextFreqs[i] - freqs[i]);
+        }
+        double[] tmp = freqs;
+        freqs = nextFreqs;
+        nextFreqs = tmp;
+        danglingFlow = calcDanglingFlow();
+        return change;
+    }
+
+    private double calcDanglingFlow() {
+        double flow = 0;
+        for (int k = 0, n = transitions.getNumDanglingNodes(); k < n; k++) {
+            flow += freqs[transitions.getDanglingNode(k)];
+        }
+        return flow;
+    }
+
+    /**
+     * Computes the stationary visit frequencies of a random walker with
+     * teleportation on the given weight matrix. Like
+     * {@link RandomWalker#generate_freqs(double[][], double)}, self
+     * connections are removed from and rows are normalized in the weight
+     * matrix itself.
+     *
+     * @param weightMat
+     * @param teleportProb
+     * @return
+     */
+    public static double[] generate_freqs(double[][] weightMat,
+        double teleportProb) {
+        return generate_freqs(weightMat, teleportProb, DEFAULT_TOLERANCE,
+            DEFAULT_MAX_ITERATIONS);
+    }
+
+    /**
+     *
+     * @param transitions
+     * @param teleportProb
+     * @return
+     */
+    public static double[] generate_freqs(TransitionMatrix transitions,
+        double teleportProb) {
+        return new PowerIteration(transitions, teleportProb).solve(
+            DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+    }
+
+    /**
+     * Recomputes the stationary visit frequencies after the transition matrix
+     * has changed (for instance through
+     * {@link TransitionMatrix#withRows(int[], double[][])}), starting from the
+     * frequencies before the change. When only part of the network has
+     * changed these are already close to the new solution, so far fewer
+     * iterations are needed than when starting from scratch.
+     *
+     * @param transitions
+     *            the changed transition matrix
+     * @param teleportProb
+     * @param previousFreqs
+     *            the stationary frequencies before the change, or null to
+     *            start from the uniform distribution
+     * @return
+     */
+    public static double[] generate_freqs(TransitionMatrix transitions,
+        double teleportProb, double[] previousFreqs) {
+        return generate_freqs(transitions, teleportProb, previousFreqs,
+            WorkStealingExecutor.commonPool());
+    }
+
+    /**
+     * As {@link #generate_freqs(TransitionMatrix, double, double[])},
+     * computing on the given executor.
+     *
+     * @param transitions
+     * @param teleportProb
+     * @param previousFreqs
+     * @param executor
+     *            see {@link #solve(double[], double, int, ExecutorService)}
+     * @return
+     */
+    public static double[] generate_freqs(TransitionMatrix transitions,
+        double teleportProb, double[] previousFreqs,
+        ExecutorService executor) {
+        return new PowerIteration(transitions, teleportProb).solve(
+            previousFreqs, DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS,
+            executor);
+    }
+
+    /**
+     *
+     * @param transitions
+     * @param teleportProbs
+     * @return
+     */
+    public static double[][] generate_freqs(TransitionMatrix transitions,
+        double[] teleportProbs) {
+        return generate_freqs(transitions, teleportProbs, DEFAULT_TOLERANCE,
+            DEFAULT_MAX_ITERATIONS);
+    }
+
+    /**
+     * Computes the stationary visit frequencies for each of several
+     * teleportation probabilities in one pass. The probabilities are solved
+     * from largest (fastest to converge) to smallest, each starting from the
+     * solution for the one before it, and all of them share the same
+     * transition matrix and threads.
+     *
+     * @param transitions
+     * @param teleportProbs
+     * @param tolerance
+     * @param maxIterations
+     * @return the frequencies for teleportProbs[k] in row k
+     */
+    public static double[][] generate_freqs(TransitionMatrix transitions,
+        double[] teleportProbs, double tolerance, int maxIterations) {
+        final double[] probs = teleportProbs;
+        Integer[] order = new Integer[probs.length];
+        for (int k = 0; k < order.length; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer k1, Integer k2) {
+                return Double.compare(probs[k2], probs[k1]);
+            }
+        });
+        double[][] allFreqs = new double[probs.length][];
+        if (probs.length == 0) {
+            return allFreqs;
+        }
+        PowerIteration solver = new PowerIteration(transitions,
+            probs[order[0]]);
+        double[] previous = null;
+        for (int k : order) {
+            solver.setTeleportProb(probs[k]);
+            allFreqs[k] = solver.solve(previous, tolerance, maxIterations);
+            previous = allFreqs[k];
+        }
+        return allFreqs;
+    }
+
+    /**
+     *
+     * @param weightMat
+     * @param teleportProb
+     * @param tolerance
+     *            the L1 change between iterations at which to stop
+     * @param maxIterations
+     *            the maximum number of iterations
+     * @return
+     */
+    public static double[] generate_freqs(double[][] weightMat,
+        double teleportProb, double tolerance, int maxIterations) {
+        return new PowerIteration(TransitionMatrix.fromWeights(weightMat),
+            teleportProb).solve(tolerance, maxIterations);
+    }
+
+}
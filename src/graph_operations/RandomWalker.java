@@ -21,49 +21,101 @@
  */
 package graph_operations;
 
-import graph_io.MatrixReader;
-import graph_io.MatrixReader.ReturnStatus;
+import concurrency_tools.WorkStealingExecutor;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
-
-import math.SimbrainMath;
+import java.util.concurrent.Future;
 
+/**
+ * A random walker with teleportation used to estimate the relative visit
+ * frequencies of nodes by Monte Carlo simulation. Walkers walk in rounds of a
+ * fixed number of steps; between rounds their visit counts are merged and the
+ * relative error of every node's estimated frequency is computed from the
+ * spread of the per-round (batch) frequencies, so that walking can stop as
+ * soon as a requested accuracy is reached.
+ *
+ * Every walker draws from its own random number stream, split from a single
+ * master stream in a fixed order, so walkers never contend for or share
+ * generator state and a seeded master stream makes the result reproducible
+ * regardless of how the walkers are scheduled. Rounds are run on a caller's
+ * executor or, by default, on {@link WorkStealingExecutor#commonPool()}.
+ *
+ * @author Zach Tosi
+ */
 public class RandomWalker implements Runnable {
 
     private static int STOP_CRITERIA = (int) 1E04;
 
+    /** The fewest steps a walker takes between merges of visit counts. */
+    private static final int MIN_ROUND_LENGTH = (int) 1E05;
+
+    /** The fewest batches from which the relative error is estimated. */
+    private static final int MIN_BATCHES = 10;
+
     private final double teleport_prob;
 
-    private final double[][] mat; // Unsafe! Don't modify...
+    /** Shared by all walkers, never modified. */
+    private final AliasTable outEdges;
 
+    /** Visits during the current round. */
     private final long[] visitCount;
 
     private final int numNodes;
 
-    public RandomWalker(final double[][] weightMat, double teleportProb) {
+    private int roundLength;
+
+    private int currentNode = -1;
+
+    /** This walker's own stream, never shared with another thread. */
+    private final SplittableRandom rand;
+
+    public RandomWalker(final AliasTable outEdges, double teleportProb,
+        SplittableRandom rand) {
+        this(outEdges, teleportProb, STOP_CRITERIA * outEdges.getNumNodes(),
+            rand);
+    }
+
+    /**
+     *
+     * @param outEdges
+     * @param teleportProb
+     * @param roundLength
+     *            the number of steps taken each time the walker is run
+     * @param rand
+     *            the random number stream used by this walker alone
+     */
+    public RandomWalker(final AliasTable outEdges, double teleportProb,
+        int roundLength, SplittableRandom rand) {
         this.teleport_prob = teleportProb;
-        this.mat = weightMat;
-        numNodes = weightMat.length;
+        this.rand = rand;
+        this.outEdges = outEdges;
+        this.roundLength = roundLength;
+        numNodes = outEdges.getNumNodes();
         visitCount = new long[numNodes];
     }
 
+    /**
+     * Walks one round, continuing from wherever the previous round ended.
+     */
     @Override
     public void run() {
-        final int stop = STOP_CRITERIA * numNodes;
         int visits = 0;
-        Random rand = ThreadLocalRandom.current();
-        int currentNode = rand.nextInt(numNodes); // Initial node
-        while (visits < stop) {
+        if (currentNode < 0) {
+            currentNode = rand.nextInt(numNodes); // Initial node
+        }
+        while (visits < roundLength) {
             if (rand.nextDouble() < teleport_prob) {
                 currentNode = rand.nextInt(numNodes);
             } else {
-                int rSelect = randSelect(mat[currentNode]);
+                int rSelect = outEdges.sample(currentNode, rand);
                 if (rSelect < 0) {
                     currentNode = rand.nextInt(numNodes);
                 } else {
@@ -75,94 +127,257 @@ public class RandomWalker implements Runnable {
         }
     }
 
-    public int randSelect(double[] outProbs) {
-        double p = Math.random();
-        double tot = 0;
-        for (int i = 0, n = outProbs.length; i < n; i++) {
-            tot += outProbs[i];
-            if (tot > p) {
-                return i;
-            }
-        }
-        if (tot == 0) {
-            return -1;
-        }
-        throw new IllegalArgumentException("The sum of the probabilities is" +
-            " not either zero or one.");
-    }
-
     public long[] getVisitCounts() {
         return visitCount;
     }
 
-    public BigDecimal[] getVisitFrequencies() {
-        BigDecimal[] frequencies = new BigDecimal[visitCount.length];
-        for (int i = 0, n = visitCount.length; i < n; i++) {
-            frequencies[i] = new BigDecimal(visitCount[i]);
-            frequencies[i] = frequencies[i]
-                .divide(new BigDecimal(STOP_CRITERIA * numNodes), 20,
-                    RoundingMode.HALF_UP);
-        }
-        return frequencies;
+    public void clearVisitCounts() {
+        Arrays.fill(visitCount, 0);
+    }
+
+    public int getRoundLength() {
+        return roundLength;
     }
 
     public static double[] generate_freqs(double[][] weightMat,
         double teleportProb) {
-        if (MatrixReader.squareCheck(weightMat)
-            .equals(ReturnStatus.FAILURE)) {
-            throw new IllegalArgumentException("Adjacency Matrix isn't square");
-        }
-        for (int i = 0, n = weightMat.length; i < n; i++) {
-            weightMat[i][i] = 0;
-        }
-        if (MatrixReader.sanityCheck(weightMat)
-            .equals(ReturnStatus.FAILURE)) {
-            for (int i = 0, n = weightMat.length; i < n; i++) {
-                weightMat[i] = SimbrainMath.normalizeVec(weightMat[i]);
-            }
-        }
+        return generate_freqs(weightMat, teleportProb, new SplittableRandom());
+    }
+
+    /**
+     *
+     * @param weightMat
+     * @param teleportProb
+     * @param rand
+     *            the master stream from which each walker's stream is split
+     * @return
+     */
+    public static double[] generate_freqs(double[][] weightMat,
+        double teleportProb, SplittableRandom rand) {
+        return generate_freqs(TransitionMatrix.fromWeights(weightMat),
+            teleportProb, rand);
+    }
+
+    public static double[] generate_freqs(TransitionMatrix transitions,
+        double teleportProb) {
+        return generate_freqs(transitions, teleportProb,
+            new SplittableRandom());
+    }
+
+    /**
+     * Runs one walker per processor, all of which share the same read-only
+     * transition matrix, for a fixed STOP_CRITERIA steps per node each.
+     *
+     * @param transitions
+     * @param teleportProb
+     * @param rand
+     *            the master stream from which each walker's stream is split
+     * @return
+     */
+    public static double[] generate_freqs(TransitionMatrix transitions,
+        double teleportProb, SplittableRandom rand) {
+        return generate_freqs(transitions, teleportProb, rand,
+            WorkStealingExecutor.commonPool());
+    }
+
+    /**
+     * As {@link #generate_freqs(TransitionMatrix, double, SplittableRandom)},
+     * running the walkers on the given executor.
+     *
+     * @param transitions
+     * @param teleportProb
+     * @param rand
+     * @param executor
+     *            see {@link PowerIteration#solve(double[], double, int,
+     *            ExecutorService)}
+     * @return
+     */
+    public static double[] generate_freqs(TransitionMatrix transitions,
+        double teleportProb, SplittableRandom rand,
+        ExecutorService executor) {
+        long maxSteps = (long) STOP_CRITERIA * transitions.getNumNodes()
+            * Runtime.getRuntime().availableProcessors();
+        return generate_freqs(transitions, teleportProb, 0, maxSteps, rand,
+            executor).getFrequencies();
+    }
+
+    /**
+     * Runs one walker per processor until the estimated relative error of
+     * every node's visit frequency is at most the given tolerance or the
+     * walkers have taken maxSteps steps between them, whichever comes first.
+     *
+     * @param transitions
+     * @param teleportProb
+     * @param tolerance
+     *            the largest acceptable relative (standard) error of any
+     *            node's visit frequency
+     * @param maxSteps
+     *            the total number of steps after which walking stops
+     *            regardless of the achieved error
+     * @param rand
+     *            the master stream from which each walker's stream is split
+     * @return the visit frequencies and their estimated errors
+     */
+    public static FlowEstimate generate_freqs(TransitionMatrix transitions,
+        double teleportProb, double tolerance, long maxSteps,
+        SplittableRandom rand) {
+        return generate_freqs(transitions, teleportProb, tolerance, maxSteps,
+            rand, WorkStealingExecutor.commonPool());
+    }
+
+    /**
+     * As {@link #generate_freqs(TransitionMatrix, double, double, long,
+     * SplittableRandom)}, running the walkers on the given executor.
+     *
+     * @param transitions
+     * @param teleportProb
+     * @param tolerance
+     * @param maxSteps
+     * @param rand
+     * @param taskExecutor
+     *            see {@link PowerIteration#solve(double[], double, int,
+     *            ExecutorService)}
+     * @return the visit frequencies and their estimated errors
+     * @throws CompletionException
+     *             if a walker fails or the caller is interrupted
+     */
+    public static FlowEstimate generate_freqs(TransitionMatrix transitions,
+        double teleportProb, double tolerance, long maxSteps,
+        SplittableRandom rand, ExecutorService taskExecutor) {
+        final int numNodes = transitions.getNumNodes();
+        AliasTable outEdges = new AliasTable(transitions);
         int numThreads = Runtime.getRuntime().availableProcessors();
-        ExecutorService taskExecutor = Executors.newFixedThreadPool(numThreads);
+        int roundLength = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(MIN_ROUND_LENGTH, 10L * numNodes));
+        roundLength = (int) Math.max(1, Math.min(roundLength, maxSteps
+            / (numThreads * MIN_BATCHES)));
+        long maxRounds = Math.max(1, maxSteps
+            / ((long) roundLength * numThreads));
+        List<Callable<Object>> walkers = new ArrayList<Callable<Object>>();
         RandomWalker[] rwArr = new RandomWalker[numThreads];
         for (int i = 0; i < numThreads; i++) {
-            rwArr[i] = new RandomWalker(SimbrainMath
-                .arr2DDeepCopy(weightMat), teleportProb);
-            taskExecutor.execute(rwArr[i]);
+            rwArr[i] = new RandomWalker(outEdges, teleportProb, roundLength,
+                rand.split());
+            walkers.add(Executors.callable(rwArr[i]));
         }
-        taskExecutor.shutdown();
+        long[] totalCounts = new long[numNodes];
+        double[] batchSum = new double[numNodes];
+        double[] batchSqSum = new double[numNodes];
+        double[] relErrors = new double[numNodes];
+        double maxError = Double.POSITIVE_INFINITY;
+        int numBatches = 0;
         try {
-            taskExecutor.awaitTermination(1l, TimeUnit.DAYS); // Arbitrary
-        } catch (InterruptedException ie) {
-            ie.printStackTrace();
-            System.exit(1);
+            for (long round = 0; round < maxRounds && !(maxError
+                <= tolerance); round++) {
+                for (Future<Object> f : taskExecutor.invokeAll(walkers)) {
+                    f.get();
+                }
+                for (RandomWalker rw : rwArr) {
+                    long[] counts = rw.getVisitCounts();
+                    for (int j = 0; j < numNodes; j++) {
+                        double batchFreq = (double) counts[j] / roundLength;
+                        totalCounts[j] += counts[j];
+                        batchSum[j] += batchFreq;
+                        batchSqSum[j] += batchFreq * batchFreq;
+                    }
+                    rw.clearVisitCounts();
+                    numBatches++;
+                }
+                if (numBatches >= MIN_BATCHES) {
+                    maxError = calcRelativeErrors(batchSum, batchSqSum,
+                        numBatches, relErrors);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
         }
-        BigDecimal[] visitCounts = new BigDecimal[weightMat.length];
-        for (int j = 0; j < weightMat.length; j++) {
-            visitCounts[j] = BigDecimal.ZERO;
+        if (numBatches < MIN_BATCHES) {
+            maxError = calcRelativeErrors(batchSum, batchSqSum, numBatches,
+                relErrors);
         }
-        for (int i = 0; i < numThreads; i++) {
-            BigDecimal[] nodeFreq = rwArr[i].getVisitFrequencies();
-            for (int j = 0; j < weightMat.length; j++) {
-                visitCounts[j] =
-                    visitCounts[j].add(nodeFreq[j].divide(new BigDecimal(
-                        numThreads), 20, RoundingMode.HALF_UP));
+        long totalSteps = (long) numBatches * roundLength;
+        double[] freqs = new double[numNodes];
+        for (int j = 0; j < numNodes; j++) {
+            freqs[j] = (double) totalCounts[j] / totalSteps;
+        }
+        return new FlowEstimate(freqs, relErrors, maxError, totalSteps);
+    }
+
+    /**
+     * Estimates the relative standard error of each node's visit frequency
+     * from the mean and variance of its per-batch frequencies.
+     *
+     * @param batchSum
+     * @param batchSqSum
+     * @param numBatches
+     * @param relErrors
+     *            filled with the relative error of each node
+     * @return the largest relative error
+     */
+    private static double calcRelativeErrors(double[] batchSum,
+        double[] batchSqSum, int numBatches, double[] relErrors) {
+        double maxError = 0;
+        for (int j = 0, n = batchSum.length; j < n; j++) {
+            double mean = batchSum[j] / numBatches;
+            if (mean == 0 || numBatches < 2) {
+                relErrors[j] = Double.POSITIVE_INFINITY;
+            } else {
+                double var = Math.max(0, (batchSqSum[j] - numBatches * mean
+                    * mean) / (numBatches - 1));
+                relErrors[j] = Math.sqrt(var / numBatches) / mean;
             }
+            maxError = Math.max(maxError, relErrors[j]);
         }
-        double sum = 0;
-        double[] vc = new double[weightMat.length];
-        for (int j = 0; j < weightMat.length; j++) {
-            vc[j] = visitCounts[j].doubleValue();
-            sum += vc[j];
+        return maxError;
+    }
+
+    /**
+     * Visit frequencies estimated by random walkers along with the estimated
+     * relative standard error of each.
+     */
+    public static final class FlowEstimate {
+
+        private final double[] frequencies;
+
+        private final double[] relativeErrors;
+
+        private final double maxRelativeError;
+
+        private final long steps;
+
+        public FlowEstimate(double[] frequencies, double[] relativeErrors,
+            double maxRelativeError, long steps) {
+            this.frequencies = frequencies;
+            this.relativeErrors = relativeErrors;
+            this.maxRelativeError = maxRelativeError;
+            this.steps = steps;
         }
-        // double s = 0;
-        double[] freqs = new double[weightMat.length];
-        for (int i = 0, n = weightMat.length; i < n; i++) {
-            freqs[i] = vc[i] / sum;
-            // s += freqs[i];
+
+        public double[] getFrequencies() {
+            return frequencies;
         }
-        // System.out.println(s);
-        // System.out.println(Arrays.toString(freqs));
-        return freqs;
+
+        public double[] getRelativeErrors() {
+            return relativeErrors;
+        }
+
+        /**
+         * @return the largest relative error of any node's frequency
+         */
+        public double getMaxRelativeError() {
+            return maxRelativeError;
+        }
+
+        /**
+         * @return the total number of steps taken by all walkers
+         */
+        public long getSteps() {
+            return steps;
+        }
+
     }
 
 }
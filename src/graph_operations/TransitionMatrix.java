@@ -0,0 +1,421 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations;
+
+import graph_io.MatrixReader;
+
+import java.util.Arrays;
+
+import math.SimbrainMath;
+
+/**
+ * An immutable sparse transition matrix holding only the non-zero transition
+ * probabilities, both row-wise (compressed sparse row, out-going edges) and
+ * column-wise (compressed sparse column, in-coming edges). The out-edges of
+ * node i are the edge indices [outStart(i), outEnd(i)) and the in-edges of
+ * node j are [inStart(j), inEnd(j)); edge indices of the two orderings are
+ * unrelated. Within each node's range the other ends of the edges are in
+ * increasing order. Memory scales with the number of edges rather than the
+ * square of the number of nodes, and since nothing is modified after
+ * construction a single instance can be shared by any number of threads.
+ *
+ * @author Zach Tosi
+ */
+public final class TransitionMatrix {
+
+    private final int numNodes;
+
+    private final int[] outOffsets;
+
+    private final int[] outTargets;
+
+    private final double[] outWeights;
+
+    private final int[] inOffsets;
+
+    private final int[] inSources;
+
+    private final double[] inWeights;
+
+    /** Nodes with no out-going edges. */
+    private final int[] danglingNodes;
+
+    /**
+     * Compresses a dense transition matrix.
+     *
+     * @param transitionMat
+     *            a square matrix each row of which sums to zero or one, see
+     *            {@link MatrixReader#prepareTransitionMatrix(double[][])}
+     */
+    public TransitionMatrix(double[][] transitionMat) {
+        numNodes = transitionMat.length;
+        outOffsets = new int[numNodes + 1];
+        for (int i = 0; i < numNodes; i++) {
+            int degree = 0;
+            for (double w : transitionMat[i]) {
+                if (w != 0) {
+                    degree++;
+                }
+            }
+            outOffsets[i + 1] = outOffsets[i] + degree;
+        }
+        outTargets = new int[outOffsets[numNodes]];
+        outWeights = new double[outOffsets[numNodes]];
+        for (int i = 0, e = 0; i < numNodes; i++) {
+            double[] row = transitionMat[i];
+            for (int j = 0; j < numNodes; j++) {
+                if (row[j] != 0) {
+                    outTargets[e] = j;
+                    outWeights[e++] = row[j];
+                }
+            }
+        }
+        inOffsets = new int[numNodes + 1];
+        inSources = new int[outTargets.length];
+        inWeights = new double[outTargets.length];
+        danglingNodes = transpose();
+    }
+
+    /**
+     * Builds the matrix from its row-wise representation.
+     *
+     * @param outOffsets
+     * @param outTargets
+     * @param outWeights
+     */
+    private TransitionMatrix(int[] outOffsets, int[] outTargets,
+        double[] outWeights) {
+        numNodes = outOffsets.length - 1;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outWeights = outWeights;
+        inOffsets = new int[numNodes + 1];
+        inSources = new int[outTargets.length];
+        inWeights = new double[outTargets.length];
+        danglingNodes = transpose();
+    }
+
+    /**
+     * Fills in the column-wise copy of the edges from the row-wise one.
+     *
+     * @return the nodes with no out-going edges
+     */
+    private int[] transpose() {
+        int numDangling = 0;
+        for (int i = 0; i < numNodes; i++) {
+            if (outOffsets[i] == outOffsets[i + 1]) {
+                numDangling++;
+            }
+            for (int e = outOffsets[i], end = outOffsets[i + 1]; e < end;
+                e++) {
+                inOffsets[outTargets[e] + 1]++;
+            }
+        }
+        for (int j = 0; j < numNodes; j++) {
+            inOffsets[j + 1] += inOffsets[j];
+        }
+        int[] fill = new int[numNodes];
+        System.arraycopy(inOffsets, 0, fill, 0, numNodes);
+        int[] dangling = new int[numDangling];
+        for (int i = 0, d = 0; i < numNodes; i++) {
+            if (outOffsets[i] == outOffsets[i + 1]) {
+                dangling[d++] = i;
+            }
+            for (int e = outOffsets[i], end = outOffsets[i + 1]; e < end;
+                e++) {
+                int k = fill[outTargets[e]]++;
+                inSources[k] = i;
+                inWeights[k] = outWeights[e];
+            }
+        }
+        return dangling;
+    }
+
+    /**
+     * Prepares the weight matrix in place (see
+     * {@link MatrixReader#prepareTransitionMatrix(double[][])}) and
+     * compresses it.
+     *
+     * @param weightMat
+     * @return
+     */
+    public static TransitionMatrix fromWeights(double[][] weightMat) {
+        return new TransitionMatrix(
+            MatrixReader.prepareTransitionMatrix(weightMat));
+    }
+
+    /**
+     * Creates a copy of this matrix in which the given rows have been
+     * replaced, for when only the out-going edges of some nodes have changed.
+     * Each new row is prepared the same way as a whole weight matrix: its
+     * self-connection is removed and it is normalized to sum to one (unless it
+     * is all zeros). Unchanged rows are copied without being re-scanned, so
+     * the cost is proportional to the number of edges plus the size of the
+     * changed rows. To change individual edges, replace their source rows.
+     *
+     * @param rows
+     *            the indices of the changed rows
+     * @param weightRows
+     *            the new dense weights of each changed row
+     * @return the updated matrix; this one is unaffected
+     */
+    public TransitionMatrix withRows(int[] rows, double[][] weightRows) {
+        if (rows.length != weightRows.length) {
+            throw new IllegalArgumentException("Each changed row needs"
+                + " exactly one row of weights");
+        }
+        double[][] replaced = new double[numNodes][];
+        for (int k = 0; k < rows.length; k++) {
+            if (weightRows[k].length != numNodes) {
+                throw new IllegalArgumentException("Row " + rows[k] + " has "
+                    + weightRows[k].length + " weights, expected "
+                    + numNodes);
+            }
+            double[] row = weightRows[k].clone();
+            row[rows[k]] = 0;
+            replaced[rows[k]] = SimbrainMath.normalizeVec(row);
+        }
+        int[] newOffsets = new int[numNodes + 1];
+        for (int i = 0; i < numNodes; i++) {
+            int degree = 0;
+            if (replaced[i] == null) {
+                degree = outDegree(i);
+            } else {
+                for (double w : replaced[i]) {
+                    if (w != 0) {
+                        degree++;
+                    }
+                }
+            }
+            newOffsets[i + 1] = newOffsets[i] + degree;
+        }
+        int[] newTargets = new int[newOffsets[numNodes]];
+        double[] newWeights = new double[newOffsets[numNodes]];
+        for (int i = 0; i < numNodes; i++) {
+            int e = newOffsets[i];
+            if (replaced[i] == null) {
+                System.arraycopy(outTargets, outOffsets[i], newTargets, e,
+                    outDegree(i));
+                System.arraycopy(outWeights, outOffsets[i], newWeights, e,
+                    outDegree(i));
+            } else {
+                for (int j = 0; j < numNodes; j++) {
+                    if (replaced[i][j] != 0) {
+                        newTargets[e] = j;
+                        newWeights[e++] = replaced[i][j];
+                    }
+                }
+            }
+        }
+        return new TransitionMatrix(newOffsets, newTargets, newWeights);
+    }
+
+    /**
+     * Finds the edge from one node to another.
+     *
+     * @param source
+     * @param target
+     * @return the index of the out-going edge of source ending at target, or
+     *         -1 if there is no such edge
+     */
+    public int findEdge(int source, int target) {
+        int lo = outOffsets[source];
+        int hi = outOffsets[source + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (outTargets[mid] < target) {
+                lo = mid + 1;
+            } else if (outTargets[mid] > target) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int getNumEdges() {
+        return outTargets.length;
+    }
+
+    public int outStart(int node) {
+        return outOffsets[node];
+    }
+
+    public int outEnd(int node) {
+        return outOffsets[node + 1];
+    }
+
+    public int outDegree(int node) {
+        return outOffsets[node + 1] - outOffsets[node];
+    }
+
+    public int outTarget(int edge) {
+        return outTargets[edge];
+    }
+
+    public double outWeight(int edge) {
+        return outWeights[edge];
+    }
+
+    public int inStart(int node) {
+        return inOffsets[node];
+    }
+
+    public int inEnd(int node) {
+        return inOffsets[node + 1];
+    }
+
+    public int inSource(int edge) {
+        return inSources[edge];
+    }
+
+    public double inWeight(int edge) {
+        return inWeights[edge];
+    }
+
+    public int getNumDanglingNodes() {
+        return danglingNodes.length;
+    }
+
+    public int getDanglingNode(int k) {
+        return danglingNodes[k];
+    }
+
+    public int inDegree(int node) {
+        return inOffsets[node + 1] - inOffsets[node];
+    }
+
+    /**
+     * Collects edges one at a time, in any order, into a matrix without ever
+     * holding a dense copy of it. Weights are used as given. Should the same
+     * edge be added more than once, the last weight added wins.
+     */
+    public static final class Builder {
+
+        private final int numNodes;
+
+        private int[] sources = new int[16];
+
+        private int[] targets = new int[16];
+
+        private double[] weights = new double[16];
+
+        private int numEdges;
+
+        /**
+         *
+         * @param numNodes
+         */
+        public Builder(int numNodes) {
+            this.numNodes = numNodes;
+        }
+
+        /**
+         * Adds an edge. Zero weights are ignored.
+         *
+         * @param source
+         * @param target
+         * @param weight
+         * @return this builder
+         */
+        public Builder addEdge(int source, int target, double weight) {
+            if (source < 0 || source >= numNodes || target < 0
+                || target >= numNodes) {
+                throw new IndexOutOfBoundsException("Edge " + source + " -> "
+                    + target + " is outside of a network of " + numNodes
+                    + " nodes");
+            }
+            if (weight == 0) {
+                return this;
+            }
+            if (numEdges == sources.length) {
+                int capacity = 2 * numEdges;
+                sources = Arrays.copyOf(sources, capacity);
+                targets = Arrays.copyOf(targets, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+            }
+            sources[numEdges] = source;
+            targets[numEdges] = target;
+            weights[numEdges++] = weight;
+            return this;
+        }
+
+        /**
+         * @return the matrix of the edges added so far
+         */
+        public TransitionMatrix build() {
+            // Stable counting sort by source...
+            int[] offsets = new int[numNodes + 1];
+            for (int e = 0; e < numEdges; e++) {
+                offsets[sources[e] + 1]++;
+            }
+            for (int i = 0; i < numNodes; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] fill = Arrays.copyOf(offsets, numNodes);
+            int[] rowTargets = new int[numEdges];
+            double[] rowWeights = new double[numEdges];
+            for (int e = 0; e < numEdges; e++) {
+                int k = fill[sources[e]]++;
+                rowTargets[k] = targets[e];
+                rowWeights[k] = weights[e];
+            }
+            // ...then a sort of each row by target, keeping only the last of
+            // any repeated edge. Each edge is keyed by its target above its
+            // position, so one primitive sort of the row's keys orders it
+            // stably in O(d log d) for a row of d edges.
+            long[] keys = new long[numEdges];
+            for (int e = 0; e < numEdges; e++) {
+                keys[e] = (long) rowTargets[e] << 32 | e;
+            }
+            int[] sortedTargets = new int[numEdges];
+            double[] sortedWeights = new double[numEdges];
+            int[] newOffsets = new int[numNodes + 1];
+            int out = 0;
+            for (int i = 0; i < numNodes; i++) {
+                int start = offsets[i];
+                int end = offsets[i + 1];
+                Arrays.sort(keys, start, end);
+                for (int k = start; k < end; k++) {
+                    if (k + 1 < end
+                        && keys[k + 1] >>> 32 == keys[k] >>> 32) {
+                        continue;
+                    }
+                    int e = (int) keys[k];
+                    sortedTargets[out] = rowTargets[e];
+                    sortedWeights[out++] = rowWeights[e];
+                }
+                newOffsets[i + 1] = out;
+            }
+            return new TransitionMatrix(newOffsets,
+                Arrays.copyOf(sortedTargets, out), Arrays.copyOf(
+                    sortedWeights, out));
+        }
+
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import concurrency_tools.WorkStealingExecutor;
+import graph_elements.Network;
+import graph_elements.Partition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plumbing shared by searches: submission to an executor, completion of
+ * the future, cancellation and deadlines. Subclasses implement
+ * {@link #search(StopCondition)}, checking the stop condition regularly.
+ * Running a search directly (as a {@link Runnable}) searches without a
+ * deadline and sets the network's modules to the result.
+ *
+ * @author Zach Tosi
+ */
+public abstract class AbstractSearchEngine implements SearchEngine, Runnable {
+
+    protected final Network net;
+
+    /**
+     * The executor the current search was submitted to, if it can be
+     * handed tasks of the search's own; only touched by the searching
+     * thread.
+     */
+    private ExecutorService submittedTo;
+
+    /**
+     *
+     * @param net
+     *            the network to be searched
+     */
+    protected AbstractSearchEngine(Network net) {
+        this.net = net;
+    }
+
+    /**
+     * @return the pool shared by every search submitted without an executor
+     *         of its own, {@link WorkStealingExecutor#commonPool()}, so that
+     *         a long-lived program running many searches doesn't create
+     *         threads for each one; searches which fan out onto it (see
+     *         {@link ParallelTempering}) are helped by their own worker
+     *         rather than left waiting
+     */
+    public static ExecutorService sharedExecutor() {
+        return WorkStealingExecutor.commonPool();
+    }
+
+    /**
+     * Submits the search to the shared executor.
+     *
+     * @return the future partition
+     * @see #sharedExecutor()
+     */
+    public CompletableFuture<Partition> submit() {
+        return submit(sharedExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Partition> submit(Executor executor) {
+        return submit(executor, new StopCondition(false, 0));
+    }
+
+    @Override
+    public CompletableFuture<Partition> submit(Executor executor,
+        long timeout, TimeUnit unit) {
+        return submit(executor, new StopCondition(true, System.nanoTime()
+            + unit.toNanos(timeout)));
+    }
+
+    private CompletableFuture<Partition> submit(final Executor executor,
+        final StopCondition stop) {
+        final CompletableFuture<Partition> future =
+            new CompletableFuture<Partition>();
+        stop.future = future;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return; // Cancelled while queued
+                    }
+                    submittedTo = executor instanceof ExecutorService
+                        ? (ExecutorService) executor : null;
+                    try {
+                        future.complete(search(stop));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Searches without a deadline and sets the network's modules to the
+     * result.
+     */
+    @Override
+    public void run() {
+        submittedTo = null;
+        Partition result = search(new StopCondition(false, 0));
+        net.setModules(result);
+        System.out.println("Hierarchical Entropy: "
+            + net.getHierarchicalEntropy());
+    }
+
+    /**
+     * @return the executor a search should fan its own work out onto: the
+     *         one it was submitted to, so that a bounded executor bounds
+     *         the whole search, or the shared one if it was run directly or
+     *         submitted to a plain {@link Executor}
+     */
+    protected ExecutorService taskExecutor() {
+        return submittedTo != null ? submittedTo : sharedExecutor();
+    }
+
+    /**
+     * Runs the tasks in the executor and waits for all of them. Called from
+     * one of the executor's own threads, the executor must not starve, as
+     * {@link WorkStealingExecutor} and ForkJoinPool don't.
+     *
+     * @param executor
+     * @param tasks
+     * @return the results of the tasks, in order
+     * @throws CompletionException
+     *             wrapping the first failure
+     */
+    static <T> List<T> invokeAll(ExecutorService executor,
+        List<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> f : executor.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Performs the search, without changing the network.
+     *
+     * @param stop
+     *            to be checked regularly; once it says so, the search should
+     *            return the best partition it has
+     * @return the partition found
+     */
+    protected abstract Partition search(StopCondition stop);
+
+    /**
+     * Tells a running search whether it should stop, i.e. whether its future
+     * has been cancelled or its deadline has passed.
+     */
+    protected static final class StopCondition {
+
+        private final boolean hasDeadline;
+
+        /** In terms of {@link System#nanoTime()}. */
+        private final long deadline;
+
+        private CompletableFuture<Partition> future;
+
+        private StopCondition(boolean hasDeadline, long deadline) {
+            this.hasDeadline = hasDeadline;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the search should return now
+         */
+        public boolean isRequested() {
+            return (future != null && future.isDone())
+                || (hasDeadline && System.nanoTime() - deadline >= 0);
+        }
+
+    }
+
+}
@@ -24,19 +24,20 @@ package graph_operations.searches;
 import graph_elements.Module;
 import graph_elements.Network;
 import graph_elements.Node;
+import graph_elements.Partition;
 import graph_operations.CostFunction;
+import graph_operations.ModuleFlowTable;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map.Entry;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.CyclicBarrier;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
 
-public class Annealing implements Runnable {
+public class Annealing extends AbstractSearchEngine {
 
-    private final Network net;
+    /** How many proposals are made between checks of the stop condition. */
+    private static final int STOP_CHECK_INTERVAL = 256;
 
     private final double startTemperature;
 
@@ -47,7 +48,8 @@ public class Annealing implements Runnable {
 
     private double temp;
 
-    private static CyclicBarrier finish;
+    /** This annealer's own random number stream. */
+    private final SplittableRandom rand;
 
     /**
      * 
@@ -57,9 +59,13 @@ public class Annealing implements Runnable {
      *            the starting temperature
      * @param coolingRate
      *            the rate of cooling in units of temperature per iteration
+     * @param rand
+     *            the random number stream used by this annealer alone
      */
-    public Annealing(Network net, double startTemperature, double coolingRate) {
-        this.net = net;
+    public Annealing(Network net, double startTemperature, double coolingRate,
+        SplittableRandom rand) {
+        super(net);
+        this.rand = rand;
         this.startTemperature = startTemperature;
         this.coolingRate = coolingRate;
         this.modulesClassVar = new ArrayList<Module>();
@@ -67,178 +73,119 @@ public class Annealing implements Runnable {
     }
 
     @Override
-    public void run() {
+    protected Partition search(StopCondition stop) {
         temp = startTemperature;
-        HashMap<ModuleTuple, Double> successorProbMapping =
-            new HashMap<ModuleTuple, Double>();
-        ArrayList<Module> modules = new ArrayList<Module>();
+        // Modules are merged in place, so work on copies
+        Set<Module> modules = new LinkedHashSet<Module>();
         for (Module m : modulesClassVar) {
             modules.add(m.deepCopy());
         }
-        double rand;
-        double sum = 0;
-        double probSum;
-        ModuleTuple acceptedMerger = null;
-        boolean skip = false;
-        while (temp > 0 && modules.size() > 1) {
-
-            if (skip) {
-                skip = false;
-            } else {
-                sum = 0;
-                successorProbMapping = new HashMap<ModuleTuple, Double>();
-                for (int i = 0, n = modules.size(); i < n - 1; i++) {
-                    for (int j = i + 1; j < n; j++) {
-                        // Preference for smaller modules merging... should also
-                        // try preference for modules with lower between module
-                        // entropy, i.e. higher prob of moving from one to
-                        // the other
-                        ModuleTuple proposedMerge = new ModuleTuple(
-                            modules.get(i), modules.get(j));
-                        // double prob = 1 - ((proposedMerge.module1.getSize() +
-                        // proposedMerge.module2
-                        // .getSize()) / net.getNumNodes());
-                        double prob = 1.0 / (double) (modules.size()
-                            * (modules.size() - 1.0) / 2.0);
-                        successorProbMapping.put(proposedMerge, prob);
-                        sum += prob;
+        CostFunction costFunction = new CostFunction(modules,
+            net.getNodeEntropy());
+        ModuleFlowTable flowTable = new ModuleFlowTable(modules);
+
+        // Every edge between two modules. A merger is proposed by drawing
+        // one of them, so only modules which are connected are proposed.
+        // Edges a merger makes internal are swapped out of the list when
+        // next drawn, each at most once, so a proposal takes constant
+        // (amortized) time however many modules are left.
+        List<Node> sources = new ArrayList<Node>();
+        List<Node> targets = new ArrayList<Node>();
+        for (Module m : modules) {
+            for (Node n : m.getNodes()) {
+                for (int e = n.outStart(), end = n.outEnd(); e < end; e++) {
+                    Node target = n.outNeighbor(e);
+                    Module other = flowTable.getModule(target);
+                    if (other != null && other != m) {
+                        sources.add(n);
+                        targets.add(target);
                     }
                 }
-                // if (sum != 1) {
-                // System.out.println("Sum: " + sum);
-                // }
-                // Normalize
-                for (Entry<ModuleTuple, Double> ent : successorProbMapping
-                    .entrySet()) {
-                    ent.setValue(ent.getValue() / sum);
-                }
             }
-            // Randomly select the proposed merger
-            probSum = 0;
-            rand = Math.random();
-            for (ModuleTuple propMerge : successorProbMapping.keySet()) {
-                probSum += successorProbMapping.get(propMerge);
-                if (probSum > rand) {
-                    acceptedMerger = propMerge;
-                    break;
-                }
+        }
+        int interEdges = sources.size();
+
+        for (int step = 0; temp > 0 && interEdges > 0; step++) {
+            if (step % STOP_CHECK_INTERVAL == 0 && stop.isRequested()) {
+                break;
             }
-            HashSet<Module> cpySet = new HashSet<Module>();
-            cpySet.addAll(modules);
-            cpySet.remove(acceptedMerger.module1);
-            cpySet.remove(acceptedMerger.module2);
-            cpySet.add(acceptedMerger.getCpyMerger());
+            Module m1;
+            Module m2;
+            do {
+                int e = rand.nextInt(sources.size());
+                m1 = flowTable.getModule(sources.get(e));
+                m2 = flowTable.getModule(targets.get(e));
+                if (m1 == m2) {
+                    // Made internal by a merger: swap-remove it
+                    int last = sources.size() - 1;
+                    sources.set(e, sources.get(last));
+                    targets.set(e, targets.get(last));
+                    sources.remove(last);
+                    targets.remove(last);
+                }
+            } while (m1 == m2);
+            double flowBetween = flowTable.getFlowBetween(m1, m2);
+            double mergedExitProb = m1.calcMergedExitProb(m2, flowBetween);
 
             // If positive new merger gives LONGER avg path description
-            double entropyDiff = CostFunction
-                .cost(cpySet, net.getNodeEntropy())
-                - CostFunction.cost(modules, net.getNodeEntropy());
-
-            if (entropyDiff < 0) {
-                // Remove the modules
-                modules.remove(acceptedMerger.module2);
-                modules.remove(acceptedMerger.module1);
-                // Merge the second module into the first
-                modules.add(acceptedMerger.getCpyMerger());
-            } else {
-                rand = Math.random();
-                if (rand < Math.exp(-10 * entropyDiff / temp)) {
-                    // Remove the modules
-                    modules.remove(acceptedMerger.module2);
-                    modules.remove(acceptedMerger.module1);
-                    // Merge the second module into the a copy of the first
-                    modules.add(acceptedMerger.getCpyMerger());
-                } else {
-                    skip = true; // Module tuples don't change since,
-                    // nothing has changed.
+            double entropyDiff = costFunction.deltaMerge(m1, m2,
+                mergedExitProb);
+
+            boolean accept = entropyDiff < 0;
+            if (!accept) {
+                accept = rand.nextDouble() < Math.exp(-10 * entropyDiff
+                    / temp);
+            }
+            if (accept) {
+                costFunction.applyMerge(m1, m2, mergedExitProb);
+                interEdges -= flowTable.getNumEdgesBetween(m1, m2);
+                // Merge the smaller module into the larger one
+                Module keep = m1;
+                Module gone = m2;
+                if (gone.getSize() > keep.getSize()) {
+                    keep = m2;
+                    gone = m1;
                 }
+                keep.mergeInto(gone, flowBetween, net.getTeleportProb(),
+                    net.getNumNodes());
+                flowTable.merge(keep, gone, keep);
+                modules.remove(gone);
             }
-            // System.out.println(SimbrainMath.roundDouble(startTemperature, 4)
-            // + " \t" + SimbrainMath.roundDouble(temp, 5) + " \t"
-            // + SimbrainMath.roundDouble(coolingRate, 6));
             temp -= coolingRate; // Lower the temperature
         }
-        try {
-            // System.out.println("Cooling Rate: " + coolingRate + " COMPLETE");
-            modulesClassVar = modules;
-            finish.await();
-        } catch (InterruptedException | BrokenBarrierException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+        // System.out.println("Cooling Rate: " + coolingRate + " COMPLETE");
+        modulesClassVar = new ArrayList<Module>(modules);
+        return new Partition(net.getFlatNodeList(), modules,
+            net.getTeleportProb());
     }
 
-    private final class ModuleTuple {
-
-        public final Module module1;
-
-        public final Module module2;
-
-        public ModuleTuple(Module module1, Module module2) {
-            this.module1 = module1;
-            this.module2 = module2;
-        }
-
-        public Module getCpyMerger() {
-            Module merged = module1.deepCopy();
-            return merged.mergeInto(module2, net.getTeleportProb(),
-                net.getNumNodes());
-        }
-
+    /**
+     * @return the modules this annealer ended up with, or the network's
+     *         modules if it hasn't run
+     */
+    public List<Module> getModules() {
+        return modulesClassVar;
     }
 
-    public static CountDownLatch latch;
-
     public static void executeAnneal(Network net) {
-        final int processors = Runtime.getRuntime().availableProcessors();
-        finish = new CyclicBarrier(processors + 1);
-        double startTemp = 20;
-        double[] coolingRates = new double[processors];
-        coolingRates[0] = 0.5;
-        coolingRates[1] = 0.45;
-        coolingRates[2] = 0.4;
-        coolingRates[3] = 0.35;
-        coolingRates[4] = 0.3;
-        coolingRates[5] = 0.25;
-        coolingRates[6] = 0.2;
-        coolingRates[7] = 0.1;
-        Annealing[] annealers = new Annealing[processors];
-        for (int i = 0; i < processors; i++) {
-            annealers[i] = new Annealing(net, startTemp, coolingRates[i]);
-            new Thread(annealers[i]).start();
-        }
-        try {
-            finish.await();
-        } catch (InterruptedException | BrokenBarrierException e) {
-            e.printStackTrace();
-        }
-        int minCL = 0;
-        double min = Double.MAX_VALUE;
-        Annealing minAnneal = null;
-        for (int i = 0; i < processors; i++) {
-            double cost = CostFunction.cost(annealers[i].modulesClassVar,
-                net.getNodeEntropy());
-            if (cost < min) {
-                min = cost;
-                minCL = i;
-                minAnneal = annealers[i];
-            }
-        }
-        HashSet<Node> repeat = new HashSet<Node>();
-        for (Module m : minAnneal.modulesClassVar) {
-            for (Node n : m.getNodes()) {
-                if (repeat.contains(n)) {
-                    System.out.println("Repeat of node: " + n.getIndex());
-                } else {
-                    repeat.add(n);
-                }
-            }
-        }
-        System.out.println("Cool Rate: " + coolingRates[minCL]);
-        System.out.println("Final cost: " + min);
-        Network.printModules(minAnneal.modulesClassVar);
-        latch.countDown();
+        executeAnneal(net, new SplittableRandom());
+    }
 
+    /**
+     * Searches the network's partitions by parallel tempering with the
+     * default temperature ladder, which runs as many replicas as there are
+     * processors on a bounded pool and exchanges states between them, and
+     * sets the network's modules to the best partition found.
+     * 
+     * @param net
+     * @param rand
+     * @see ParallelTempering
+     */
+    public static void executeAnneal(Network net, SplittableRandom rand) {
+        ParallelTempering tempering = new ParallelTempering(net, rand);
+        tempering.run();
+        System.out.println("Final cost: " + tempering.getBestCodelength());
+        Network.printModules(net.getModules());
     }
 
 }
@@ -23,260 +23,301 @@ package graph_operations.searches;
 
 import graph_elements.Module;
 import graph_elements.Network;
+import graph_elements.Partition;
 import graph_operations.CostFunction;
+import graph_operations.ModuleFlowTable;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import concurrency_tools.AbstractProducer;
-import concurrency_tools.Consumer;
-import concurrency_tools.Task;
-
-public class GreedySearch {
-
-    private static final byte NUM_PRODUCERS = 1;
-
-    private static final int NUM_CONSUMERS = Runtime.getRuntime()
-        .availableProcessors();
-
-    private final BlockingQueue<Task> taskQueue =
-        new LinkedBlockingQueue<Task>();
-
-    private Set<Module> partitioning = Collections
-        .synchronizedSet(new HashSet<Module>());
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A greedy agglomerative search which on every cycle scores the merger of
+ * every connected pair of modules and makes the best one (or, optionally, a
+ * batch of disjoint improving ones). The scoring of a cycle is split into
+ * ranges of candidate pairs evaluated in the executor the search was
+ * submitted to; each range keeps its own best candidate and the bests are
+ * combined in range order, so no locks are taken and no task objects are
+ * created per candidate. Ties are broken by candidate order, making the
+ * result independent of how the work was scheduled.
+ * 
+ * The search starts from the network's modules as they are when it starts
+ * and leaves them alone; merged modules are copies.
+ * 
+ * @author Zach Tosi
+ */
+public class GreedySearch extends AbstractSearchEngine {
 
-    private final Network net;
+    /** The number of candidates scored by each task. */
+    private static final int CHUNK_SIZE = 256;
 
-    private final double nodeEntropy;
+    /** Only ever touched by the searching thread. */
+    private Set<Module> partitioning;
 
-    private final Object partitionEntropyLock = new Object();
+    /** Null to score in the executor the search was submitted to. */
+    private final ExecutorService pool;
 
-    private double partitionEntropy = Double.MAX_VALUE;
+    /** Tracks the codelength of the current partitioning. */
+    private CostFunction costFunction;
 
-    private SearchTask minimalTask = null;
+    /** Tracks which modules are connected and the flow between them. */
+    private ModuleFlowTable flowTable;
 
     /**
-     * A barrier to force consumers to wait so that the chosen partition can be
-     * accepted.
-     */
-    private CyclicBarrier mergeCycleLatch;
-
-    /** 
-     * A count down latch which can be set by classes calling this search
-     * allowing the search to complete before any other actions are taken.
+     * Whether each cycle applies every disjoint improving merge it can
+     * rather than only the best one.
      */
-    private CountDownLatch externalLatch;
-
-    private List<Thread> consumerThreads = new ArrayList<Thread>();
+    private final boolean batchMerges;
 
     /**
      * 
      * @param net
      */
     public GreedySearch(Network net) {
-        this.net = net;
-        nodeEntropy = net.getNodeEntropy();
-        partitioning.addAll(net.getModules());
+        this(net, false);
     }
 
     /**
-     * Performs the greedy search. Initializes all producer and consumer
-     * threads.
+     * 
+     * @param net
+     * @param batchMerges
+     *            if true each merge cycle applies a set of disjoint merges,
+     *            each of which shortens the codelength, instead of only the
+     *            single best one, so that far fewer cycles are needed
      */
-    public void search() {
-        Consumer[] consumers = new Consumer[NUM_CONSUMERS];
-        for (int i = 0; i < NUM_CONSUMERS; i++) {
-            consumers[i] = new Consumer(taskQueue);
-        }
-        new Thread(new GSTaskProducer(consumers)).start();
-        for (Consumer c : consumers) {
-            consumerThreads.add(new Thread(c));
-        }
-        for (Thread t : consumerThreads) {
-            t.start();
-        }
+    public GreedySearch(Network net, boolean batchMerges) {
+        this(net, batchMerges, null);
     }
 
-    public CountDownLatch getExternalLatch() {
-        return externalLatch;
+    /**
+     * 
+     * @param net
+     * @param batchMerges
+     * @param pool
+     *            the pool in which candidates are scored, or null for the
+     *            one the search is submitted to (see
+     *            {@link #taskExecutor()})
+     */
+    public GreedySearch(Network net, boolean batchMerges,
+        ExecutorService pool) {
+        super(net);
+        this.batchMerges = batchMerges;
+        this.pool = pool;
     }
 
-    public void setExternalLatch(CountDownLatch externalLatch) {
-        this.externalLatch = externalLatch;
+    @Override
+    protected Partition search(StopCondition stop) {
+        partitioning = new LinkedHashSet<Module>(net.getModules());
+        costFunction = new CostFunction(partitioning, net.getNodeEntropy());
+        flowTable = new ModuleFlowTable(partitioning);
+        double partitionEntropy = Double.MAX_VALUE;
+        double partEntropy = Double.POSITIVE_INFINITY;
+        while (partEntropy > partitionEntropy && !stop.isRequested()) {
+            partEntropy = partitionEntropy;
+            Candidates cycle = new Candidates();
+            if (cycle.size() == 0) {
+                break;
+            }
+            int best = score(cycle);
+            double val = costFunction.getCodelength() + cycle.deltas[best];
+            if (val < partitionEntropy) {
+                if (batchMerges) {
+                    applyBatch(cycle);
+                    partitionEntropy = costFunction.getCodelength();
+                } else {
+                    applyMerge(cycle, best);
+                    partitionEntropy = val;
+                }
+            }
+        }
+        return new Partition(net.getFlatNodeList(), partitioning,
+            net.getTeleportProb());
     }
 
     /**
-     * The task performed during the greedy search.
+     * Merges the modules of a candidate.
      * 
-     * @author Zach Tosi
+     * @param cycle
+     * @param k
      */
-    private class SearchTask implements Task {
-
-        private final Module m1;
-
-        private final Module m2;
-
-        private Module merged;
+    private void applyMerge(Candidates cycle, int k) {
+        Module m1 = cycle.firsts[k];
+        Module m2 = cycle.seconds[k];
+        costFunction.applyMerge(m1, m2, cycle.mergedExitProbs[k]);
+        Module merged = m1.deepCopy().mergeInto(m2, net.getTeleportProb(),
+            net.getNumNodes());
+        partitioning.remove(m1);
+        partitioning.remove(m2);
+        partitioning.add(merged);
+        flowTable.merge(m1, m2, merged);
+    }
 
-        public SearchTask(Module m1, Module m2) {
-            this.m1 = m1;
-            this.m2 = m2;
+    /**
+     * Takes the best improving merge of each module and applies as many of
+     * them as possible, best first, skipping any involving a module which
+     * has already been merged this cycle. Merging disjoint modules leaves the
+     * others' merged exit probabilities unchanged, but the codelength term
+     * shared by all modules does change, so each merge is rescored before
+     * being applied and skipped if it no longer shortens the codelength. The
+     * first merge applied is always the cycle's overall best.
+     * 
+     * @param cycle
+     */
+    private void applyBatch(final Candidates cycle) {
+        Map<Module, Integer> bestOfModule =
+            new IdentityHashMap<Module, Integer>();
+        for (int k = 0, n = cycle.size(); k < n; k++) {
+            if (cycle.deltas[k] >= 0) {
+                continue;
+            }
+            for (Module m : new Module[] { cycle.firsts[k],
+                cycle.seconds[k] }) {
+                Integer best = bestOfModule.get(m);
+                if (best == null || cycle.deltas[k] < cycle.deltas[best]) {
+                    bestOfModule.put(m, k);
+                }
+            }
         }
-
-        public Collection<Module> getProposedMapping() {
-            HashSet<Module> cpy = new HashSet<Module>();
-            cpy.addAll(partitioning);
-            cpy.remove(m1);
-            cpy.remove(m2);
-            Module modcpy = m1.deepCopy();
-            merged = modcpy.mergeInto(m2, net.getTeleportProb(),
-                net.getNumNodes());
-            cpy.add(merged);
-            return cpy;
+        List<Integer> candidates = new ArrayList<Integer>(
+            new LinkedHashSet<Integer>(bestOfModule.values()));
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer k1, Integer k2) {
+                int cmp = Double.compare(cycle.deltas[k1], cycle.deltas[k2]);
+                return cmp != 0 ? cmp : Integer.compare(k1, k2);
+            }
+        });
+        Set<Module> merged = Collections
+            .newSetFromMap(new IdentityHashMap<Module, Boolean>());
+        for (int k : candidates) {
+            Module m1 = cycle.firsts[k];
+            Module m2 = cycle.seconds[k];
+            if (merged.contains(m1) || merged.contains(m2)) {
+                continue;
+            }
+            if (costFunction.deltaMerge(m1, m2,
+                cycle.mergedExitProbs[k]) >= 0) {
+                continue;
+            }
+            merged.add(m1);
+            merged.add(m2);
+            applyMerge(cycle, k);
         }
+    }
 
-        /**
-         * @return the m1
-         */
-        public Module getM1() {
-            return m1;
-        }
+    /**
+     * The connected pairs of modules of one cycle, each proposed once, and
+     * their scores, held in parallel arrays indexed by candidate.
+     */
+    private class Candidates {
 
-        /**
-         * @return the m2
-         */
-        public Module getM2() {
-            return m2;
-        }
+        private final Module[] firsts;
 
-        public Module getMergedMod() {
-            return merged;
-        }
+        private final Module[] seconds;
 
-        @Override
-        public void perform() {
-            if (!Module.areConnected(m1, m2)) {
-                return;
-            }
-            double val = CostFunction.cost(getProposedMapping(), nodeEntropy);
-            synchronized (partitionEntropyLock) {
-                if (val < partitionEntropy) {
-                    partitionEntropy = val;
-                    minimalTask = this;
+        /** The exit probability of each candidate's merged module. */
+        private final double[] mergedExitProbs;
+
+        /** The change in codelength of each candidate's merger. */
+        private final double[] deltas;
+
+        public Candidates() {
+            List<Module> m1s = new ArrayList<Module>();
+            List<Module> m2s = new ArrayList<Module>();
+            Set<Module> proposed = Collections
+                .newSetFromMap(new IdentityHashMap<Module, Boolean>());
+            for (Module m1 : partitioning) {
+                proposed.add(m1);
+                for (Module m2 : flowTable.getNeighbors(m1)) {
+                    if (!proposed.contains(m2)) {
+                        m1s.add(m1);
+                        m2s.add(m2);
+                    }
                 }
             }
+            firsts = m1s.toArray(new Module[m1s.size()]);
+            seconds = m2s.toArray(new Module[m2s.size()]);
+            mergedExitProbs = new double[firsts.length];
+            deltas = new double[firsts.length];
         }
 
-        @Override
-        public boolean isPoison() {
-            return false;
+        public int size() {
+            return firsts.length;
         }
 
     }
 
     /**
-     * A  task telling the consumer to wait at a cyclic barrier.
-     * @author Zach Tosi
+     * Scores every candidate of the cycle, a range of {@link #CHUNK_SIZE} at
+     * a time.
+     * 
+     * @return the index of the best candidate: the one with the smallest
+     *         change in codelength, the earliest on ties
      */
-    private class WaitTask implements Task {
-
-        @Override
-        public void perform() {
-            try {
-                mergeCycleLatch.await();
-            } catch (InterruptedException | BrokenBarrierException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
+    private int score(Candidates cycle) {
+        int size = cycle.size();
+        if (size <= CHUNK_SIZE) {
+            return new ScoreRange(cycle, 0, size).call();
         }
-
-        @Override
-        public boolean isPoison() {
-            return true;
+        List<ScoreRange> ranges = new ArrayList<ScoreRange>(
+            (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int start = 0; start < size; start += CHUNK_SIZE) {
+            ranges.add(new ScoreRange(cycle, start, Math.min(size, start
+                + CHUNK_SIZE)));
         }
-
+        int best = 0;
+        for (int rangeBest : invokeAll(pool != null ? pool : taskExecutor(),
+            ranges)) {
+            if (cycle.deltas[rangeBest] < cycle.deltas[best]) {
+                best = rangeBest;
+            }
+        }
+        return best;
     }
 
     /**
-     * An producer specifically for greedy search tasks.
+     * Scores a range of candidates and returns the index of the best one:
+     * the one with the smallest change in codelength, the earliest on ties.
+     * Each candidate's scores are written to its own array slots.
      * 
      * @author Zach Tosi
-     *
      */
-    private class GSTaskProducer extends AbstractProducer {
+    private class ScoreRange implements Callable<Integer> {
 
-        public GSTaskProducer(concurrency_tools.Consumer[] consumers) {
-            super(consumers);
-        }
+        private final Candidates cycle;
 
-        /**
-         * 
-         */
-        @Override
-        public void run() {
-            double partEntropy = Double.POSITIVE_INFINITY;
-            while (partEntropy > partitionEntropy) {
-                partEntropy = partitionEntropy;
-                Module[] modules = partitioning.toArray(new Module[partitioning
-                    .size()]);
-                mergeCycleLatch = new CyclicBarrier(NUM_PRODUCERS
-                    + NUM_CONSUMERS);
-                for (int i = 0, n = modules.length - 1; i < n; i++) {
-                    for (int j = i + 1; j < n + 1; j++) {
-                        try {
-                            taskQueue
-                                .put(new SearchTask(modules[i], modules[j]));
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                            System.exit(1);
-                        }
-                    }
-                }
-                for (int i = 0; i < NUM_CONSUMERS; i++) {
-                    try {
-                        taskQueue.put(new WaitTask());
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-                }
-                try {
-                    mergeCycleLatch.await();
-                } catch (InterruptedException | BrokenBarrierException e) {
-                    e.printStackTrace();
-                    System.exit(1);
-                }
-                if (partEntropy > partitionEntropy) {
-                    partitioning.remove(minimalTask.getM1());
-                    partitioning.remove(minimalTask.getM2());
-                    partitioning.add(minimalTask.getMergedMod());
-                    minimalTask.getMergedMod().claimOwnershipOfChildren();
-                }
-            }
+        private final int start;
 
-            shutdownConsumers();
-            System.out.println("Hierarchical Entropy: " + partitionEntropy);
-            net.setModules(partitioning);
-            net.setHierarchicalEntropy(partitionEntropy);
-            if (externalLatch != null) {
-                externalLatch.countDown();
-            }
+        private final int end;
+
+        public ScoreRange(Candidates cycle, int start, int end) {
+            this.cycle = cycle;
+            this.start = start;
+            this.end = end;
         }
 
-        public void shutdownConsumers() {
-            super.shutdownConsumers();
-            for (Thread t : consumerThreads) {
-                t.interrupt();
+        @Override
+        public Integer call() {
+            int best = start;
+            for (int k = start; k < end; k++) {
+                Module m1 = cycle.firsts[k];
+                Module m2 = cycle.seconds[k];
+                cycle.mergedExitProbs[k] = m1.calcMergedExitProb(m2,
+                    flowTable.getFlowBetween(m1, m2));
+                cycle.deltas[k] = costFunction.deltaMerge(m1, m2,
+                    cycle.mergedExitProbs[k]);
+                if (cycle.deltas[k] < cycle.deltas[best]) {
+                    best = k;
+                }
             }
+            return best;
         }
 
     }
@@ -2,7 +2,7 @@
  * Part of infomap-toolkit--a java based concurrent toolkit for running the
  * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
  * Carl T. Bergstrom).
- * 
+ *
  * Copyright (C) 2014 Zach Tosi
  *
  * This program is free software; you can redistribute it and/or modify
@@ -21,198 +21,413 @@
  */
 package graph_operations.searches;
 
-import graph_elements.Module;
 import graph_elements.Network;
-import graph_elements.Node;
+import graph_elements.Partition;
 import graph_operations.CostFunction;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
-public class HeatBath implements Runnable {
+/**
+ * A heat bath (Gibbs) sampler over partitions. Every sweep visits each node
+ * once, in random order, and resamples its module from the Boltzmann
+ * distribution over staying put or moving to one of the modules it has an
+ * edge to, the energy of each choice being the change in codelength it
+ * causes. Energies are computed as deltas against the current partition from
+ * the node's edges alone, so nothing is copied. The temperature is lowered
+ * after a given number of sweeps until it reaches zero.
+ *
+ * Nodes are processed in batches: the energies of a batch are computed in
+ * parallel in the executor the search was submitted to, then its nodes are
+ * resampled one after
+ * another. A node whose candidate modules were changed by an earlier move of
+ * the same batch is rescored before being resampled, so each choice is made
+ * against the partition as it is at that moment (up to the shift every move
+ * causes in the term shared by all modules). All random numbers are drawn
+ * outside the pool, so results don't depend on scheduling.
+ *
+ * @author Zach Tosi
+ */
+public class HeatBath extends AbstractSearchEngine {
+
+    /** Energies (in bits) are multiplied by this before dividing by T. */
+    private static final double ENERGY_SCALE = 1000;
 
-    private final Network net;
+    /** The number of nodes whose energies are computed together. */
+    private static final int BATCH_SIZE = 256;
 
-    private static final int POOL_SIZE = Runtime.getRuntime()
-        .availableProcessors();
+    /** The number of nodes of a batch scored by each task. */
+    private static final int CHUNK_SIZE = 16;
 
-    private static final ExecutorService executor = Executors
-        .newFixedThreadPool(POOL_SIZE);
+    private final double startTemperature;
 
     private final double coolingRate;
 
     private double temp;
 
-    public static CountDownLatch latch;
+    private final int sweepsPerTemperature;
+
+    private final SplittableRandom rand;
+
+    /** Null to score in the executor the search was submitted to. */
+    private final ExecutorService pool;
+
+    private Partition partition;
 
     public HeatBath(Network net, double startTemperature, double coolingRate) {
-        this.net = net;
+        this(net, startTemperature, coolingRate, new SplittableRandom());
+    }
+
+    /**
+     *
+     * @param net
+     * @param startTemperature
+     * @param coolingRate
+     * @param rand
+     *            the random number stream from which moves are sampled
+     */
+    public HeatBath(Network net, double startTemperature, double coolingRate,
+        SplittableRandom rand) {
+        this(net, startTemperature, coolingRate, 1, rand, null);
+    }
+
+    /**
+     *
+     * @param net
+     * @param startTemperature
+     * @param coolingRate
+     *            the amount the temperature is lowered by after each round
+     *            of sweeps
+     * @param sweepsPerTemperature
+     *            the number of sweeps over all nodes at each temperature
+     * @param rand
+     *            the random number stream from which moves are sampled
+     * @param pool
+     *            the pool in which energies are computed, or null for the
+     *            one the search is submitted to (see
+     *            {@link #taskExecutor()})
+     */
+    public HeatBath(Network net, double startTemperature, double coolingRate,
+        int sweepsPerTemperature, SplittableRandom rand,
+        ExecutorService pool) {
+        super(net);
+        this.rand = rand;
+        this.startTemperature = startTemperature;
         this.coolingRate = coolingRate;
-        this.temp = startTemperature;
+        this.sweepsPerTemperature = sweepsPerTemperature;
+        this.pool = pool;
     }
 
     @Override
-    public void run() {
-        Set<Module> partitionScheme = new HashSet<Module>();
-        partitionScheme.addAll(net.getModules());
-        ArrayList<Task> modEntropies = new ArrayList<Task>(
-            partitionScheme.size() * partitionScheme.size());
-        Set<Module> taskScheme = new HashSet<Module>();
-        Collection<Callable<Object>> executeList;
-        while (temp > 0) {
-            executeList = new LinkedList<Callable<Object>>();
+    protected Partition search(StopCondition stop) {
+        temp = startTemperature;
+        partition = net.createPartition();
+        CostFunction costFunction = new CostFunction(partition,
+            net.getNodeEntropy());
+        Sweep sweep = new Sweep(partition, costFunction);
+        while (temp > 0 && !stop.isRequested()) {
             System.out.println(temp);
-            modEntropies.clear();
-            // System.out.println("Made it into while.");
-            for (Module parentMod : partitionScheme) {
-                // System.out.println("Made it into for 1.");
-                for (Node n : parentMod.getNodes()) {
-                    // System.out.println("Made it into for 2.");
-                    // Reset the partitioning scheme holder
-                    taskScheme = new HashSet<Module>();
-                    taskScheme.addAll(partitionScheme);
-                    for (Module receivingMod : partitionScheme) {
-                        Task t = new Task(net, n, parentMod, receivingMod,
-                            taskScheme);
-                        modEntropies.add(t);
-                        executeList.add(Executors.callable(t));
-                    }
+            for (int s = 0; s < sweepsPerTemperature
+                && !stop.isRequested(); s++) {
+                sweep.run();
+            }
+            // Discard the rounding error accumulated by the running sums
+            partition.recalculate();
+            costFunction.recalculate(partition);
+            temp = scheduling();
+        }
+
+        System.out.println("L(M): " + costFunction.getCodelength());
+        // Network.printModules(partition.toModules());
+        return partition;
+    }
+
+    public double scheduling() {
+        return temp - coolingRate;
+    }
+
+    /**
+     * @return the partition sampled by the last run, which is also the one
+     *         it returned
+     */
+    public Partition getPartition() {
+        return partition;
+    }
+
+    /**
+     * The state of a sweep: the candidate moves scored for each node of the
+     * current batch, and what has changed since.
+     */
+    private final class Sweep {
+
+        private final Partition partition;
+
+        private final CostFunction costFunction;
+
+        private final int[] order;
+
+        /** For each slot of a batch, the node's candidate modules... */
+        private final int[][] candidates = new int[BATCH_SIZE][];
+
+        /** ...the change in codelength of moving there... */
+        private final double[][] deltas = new double[BATCH_SIZE][];
+
+        /** ...the resulting exit probability of the module moved to... */
+        private final double[][] toExits = new double[BATCH_SIZE][];
+
+        /** ...and how many there are. */
+        private final int[] numCandidates = new int[BATCH_SIZE];
+
+        /** The exit probability of each node's module without it. */
+        private final double[] fromExits = new double[BATCH_SIZE];
+
+        /** The number of moves made so far. */
+        private int numMoves;
+
+        /** For each module id, numMoves when it last changed. */
+        private final int[] lastChanged;
+
+        /** Per worker space for adding up flows to neighboring modules. */
+        private final ThreadLocal<Scratch> scratch;
+
+        public Sweep(final Partition partition, CostFunction costFunction) {
+            this.partition = partition;
+            this.costFunction = costFunction;
+            int numNodes = partition.getNumNodes();
+            order = new int[numNodes];
+            for (int i = 0; i < numNodes; i++) {
+                order[i] = i;
+            }
+            lastChanged = new int[numNodes];
+            scratch = new ThreadLocal<Scratch>() {
+                @Override
+                protected Scratch initialValue() {
+                    return new Scratch(partition.getNumNodes());
                 }
+            };
+        }
+
+        public void run() {
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = rand.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
             }
-            try {
-                List<Future<Object>> f = executor.invokeAll(executeList);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            for (int start = 0; start < order.length; start += BATCH_SIZE) {
+                int end = Math.min(order.length, start + BATCH_SIZE);
+                int stamp = numMoves;
+                scoreBatch(start, end);
+                for (int k = start; k < end; k++) {
+                    if (isStale(k - start, order[k], stamp)) {
+                        score(k - start, order[k]);
+                    }
+                    resample(k - start, order[k]);
+                }
             }
+        }
 
-            double sum = 0.0;
-            for (Task t : modEntropies) {
-                sum += Math.exp(-1000 * t.getEntropy() / (temp)); // *
-                // t.receivingMod.getSize()));
+        /**
+         * @return true if a module the slot's node could have moved to (or
+         *         its own) has changed since the given number of moves
+         */
+        private boolean isStale(int slot, int node, int stamp) {
+            if (lastChanged[partition.getModule(node)] > stamp) {
+                return true;
+            }
+            for (int c = 0; c < numCandidates[slot]; c++) {
+                if (lastChanged[candidates[slot][c]] > stamp) {
+                    return true;
+                }
             }
+            return false;
+        }
 
-            double probSum = 0.0;
-            double rand = Math.random();
-            Task acceptedTask = null;
-            for (Task t : modEntropies) {
-                probSum += Math.exp(-1000 * t.getEntropy() / (temp)) / sum;// *
-                // t.receivingMod.getSize()))
-                // / sum;
-                if (probSum > rand) {
-                    acceptedTask = t;
-                    break;
+        /**
+         * Scores moving the node to each module it has an edge to, into the
+         * given slot. Only reads the partition.
+         */
+        private void score(int slot, int node) {
+            Scratch flows = scratch.get();
+            double[] outTo = flows.outTo;
+            double[] inFrom = flows.inFrom;
+            boolean[] isTouched = flows.isTouched;
+            int degree = partition.outEnd(node) - partition.outStart(node)
+                + partition.inEnd(node) - partition.inStart(node);
+            if (candidates[slot] == null
+                || candidates[slot].length < degree) {
+                int capacity = Math.max(degree, 16);
+                candidates[slot] = new int[capacity];
+                deltas[slot] = new double[capacity];
+                toExits[slot] = new double[capacity];
+            }
+            int[] mods = candidates[slot];
+            int from = partition.getModule(node);
+            int n = 0;
+            // Flow to nodes outside the partition leaves any module
+            double outTotal = partition.getExternalFlow(node);
+            for (int e = partition.outStart(node), end = partition
+                .outEnd(node); e < end; e++) {
+                int target = partition.outTarget(e);
+                if (target == node) {
+                    continue;
+                }
+                int m = partition.getModule(target);
+                if (m != from && !isTouched[m]) {
+                    isTouched[m] = true;
+                    mods[n++] = m;
                 }
+                outTo[m] += partition.outFlow(e);
+                outTotal += partition.outFlow(e);
             }
-            if (acceptedTask == null) {
-                partitionScheme = modEntropies.get(modEntropies.size() - 1)
-                    .getPartitioning();
-            } else {
-                partitionScheme = acceptedTask.getPartitioning();
-            }
-            if (partitionScheme.size() > 129) {
-                int nodeCount = 0;
-                for (Module m : partitionScheme) {
-                    if (m.containsNode(acceptedTask.swapNode)) {
-                        for (Node n : m.getNodes()) {
-                            System.out.print(n.getIndex() + " ");
-                        }
-                    }
-                    nodeCount += m.getSize();
+            for (int e = partition.inStart(node), end = partition
+                .inEnd(node); e < end; e++) {
+                int source = partition.inSource(e);
+                if (source == node) {
+                    continue;
+                }
+                int m = partition.getModule(source);
+                if (m != from && !isTouched[m]) {
+                    isTouched[m] = true;
+                    mods[n++] = m;
                 }
-                System.out.println("Node Count: \t" + nodeCount);
+                inFrom[m] += partition.inFlow(e);
             }
-            temp = scheduling();
+
+            int nodeSize = partition.getNodeSize(node);
+            double nodeFreq = partition.getNodeFreq(node);
+            double fromExit = 0;
+            if (partition.getModuleSize(from) > 1) {
+                fromExit = partition.calcExitProb(partition
+                    .getModuleNetworkSize(from) - nodeSize, partition
+                    .getModuleFreq(from) - nodeFreq, partition
+                    .getModuleExitFlow(from) - (outTotal - outTo[from])
+                    + inFrom[from]);
+            }
+            fromExits[slot] = fromExit;
+            for (int c = 0; c < n; c++) {
+                int m = mods[c];
+                double toExit = partition.calcExitProb(partition
+                    .getModuleNetworkSize(m) + nodeSize, partition
+                    .getModuleFreq(m) + nodeFreq, partition
+                    .getModuleExitFlow(m) + (outTotal - outTo[m])
+                    - inFrom[m]);
+                toExits[slot][c] = toExit;
+                deltas[slot][c] = costFunction.deltaMove(partition, node, m,
+                    fromExit, toExit);
+            }
+            numCandidates[slot] = n;
+            for (int c = 0; c < n; c++) {
+                outTo[mods[c]] = 0;
+                inFrom[mods[c]] = 0;
+                isTouched[mods[c]] = false;
+            }
+            outTo[from] = 0;
+            inFrom[from] = 0;
         }
 
-        executor.shutdown();
+        /**
+         * Draws the slot's node's module from the Boltzmann distribution over
+         * its candidates and staying put (whose energy is zero), and moves
+         * it.
+         */
+        private void resample(int slot, int node) {
+            int n = numCandidates[slot];
+            if (n == 0) {
+                return;
+            }
+            double[] delta = deltas[slot];
+            // Weights relative to the best choice, which leaves the
+            // distribution unchanged but keeps exp from under/overflowing
+            double minDelta = 0;
+            for (int c = 0; c < n; c++) {
+                minDelta = Math.min(minDelta, delta[c]);
+            }
+            double stayWeight = Math.exp(-ENERGY_SCALE * (0 - minDelta)
+                / temp);
+            double sum = stayWeight;
+            for (int c = 0; c < n; c++) {
+                sum += Math.exp(-ENERGY_SCALE * (delta[c] - minDelta) / temp);
+            }
+            double randVal = rand.nextDouble() * sum;
+            double probSum = stayWeight;
+            if (probSum > randVal) {
+                return;
+            }
+            int chosen = n - 1;
+            for (int c = 0; c < n - 1; c++) {
+                probSum += Math.exp(-ENERGY_SCALE * (delta[c] - minDelta)
+                    / temp);
+                if (probSum > randVal) {
+                    chosen = c;
+                    break;
+                }
+            }
+            int from = partition.getModule(node);
+            int to = candidates[slot][chosen];
+            costFunction.applyMove(partition, node, to, fromExits[slot],
+                toExits[slot][chosen]);
+            partition.moveNode(node, to);
+            numMoves++;
+            lastChanged[from] = numMoves;
+            lastChanged[to] = numMoves;
+        }
 
-        System.out.println("L(M): "
-            + CostFunction.cost(partitionScheme, net.getNodeEntropy()));
-        // Network.printModules(partitionScheme);
+        /** Flows between a node and each module, indexed by module id. */
+        private final class Scratch {
 
-        latch.countDown();
-    }
+            final double[] outTo;
 
-    public double scheduling() {
-        return temp - coolingRate;
-    }
+            final double[] inFrom;
 
-    private static class Task implements Runnable {
+            final boolean[] isTouched;
 
-        private Set<Module> currentPartitionScheme;
+            Scratch(int numIds) {
+                outTo = new double[numIds];
+                inFrom = new double[numIds];
+                isTouched = new boolean[numIds];
+            }
 
-        private final Network net;
+        }
 
-        private final Node swapNode;
+        /**
+         * Scores the nodes of a batch, a range of {@link #CHUNK_SIZE} at a
+         * time.
+         */
+        private void scoreBatch(int start, int end) {
+            List<ScoreRange> ranges = new ArrayList<ScoreRange>();
+            for (int k = start; k < end; k += CHUNK_SIZE) {
+                ranges.add(new ScoreRange(k, Math.min(end, k + CHUNK_SIZE)));
+            }
+            invokeAll(pool != null ? pool : taskExecutor(), ranges);
+        }
 
-        private final Module parentMod;
+        /** Scores the nodes of a range of the current batch. */
+        private final class ScoreRange implements Callable<Void> {
 
-        private final Module receivingMod;
+            private final int start;
 
-        private double entropy;
+            private final int end;
 
-        public Task(Network net, Node swapNode, Module parentMod,
-            Module receivingMod, Set<Module> currentPartitionScheme) {
-            this.net = net;
-            this.swapNode = swapNode;
-            this.currentPartitionScheme = currentPartitionScheme;
-            this.parentMod = parentMod;
-            this.receivingMod = receivingMod;
-        }
+            public ScoreRange(int start, int end) {
+                this.start = start;
+                this.end = end;
+            }
 
-        @Override
-        public synchronized void run() {
-            Set<Module> swappedScheme = new HashSet<Module>(
-                (int) (currentPartitionScheme.size() * 1.5));
-            swappedScheme.addAll(currentPartitionScheme);
-            boolean parentRemoveSuccess = swappedScheme.remove(parentMod);
-            // Node n is going to be transfered to the receiving
-            // module for the purposes of evaluating that
-            // configuration's entropy and thus determining
-            // the probability of keeping that state
-            boolean receiverRemoveSuccess = swappedScheme.remove(receivingMod);
-            // Copy the parent module and remove n from
-            // the copy
-            // if (!(parentRemoveSuccess && receiverRemoveSuccess)) {
-            // System.out.println("Parent: " + parentRemoveSuccess
-            // + " \t Receiver: " + receiverRemoveSuccess);
-            // }
-            Module parentModCpy = parentMod.deepCopy();
-            parentModCpy.removeNode(swapNode);
-
-            // Add the copies to the partitioning scheme to
-            // be evaluated.
-            // if (!parentModCpy.getNodes().isEmpty())
-            swappedScheme.add(parentModCpy);
-
-            if (!parentMod.equals(receivingMod)) {
-                // Copy the receiving module and add
-                // n to the copy
-                Module receivingModCpy = receivingMod.deepCopy();
-                receivingModCpy.addNode(swapNode);
-                swappedScheme.add(receivingModCpy);
-            }
-
-            entropy = CostFunction.cost(swappedScheme, net.getNodeEntropy());
-            currentPartitionScheme = swappedScheme;
-        }
+            @Override
+            public Void call() {
+                int batchStart = start - start % BATCH_SIZE;
+                for (int k = start; k < end; k++) {
+                    score(k - batchStart, order[k]);
+                }
+                return null;
+            }
 
-        public synchronized double getEntropy() {
-            return entropy;
         }
 
-        public synchronized Set<Module> getPartitioning() {
-            return currentPartitionScheme;
-        }
     }
 
 }
@@ -0,0 +1,428 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import graph_elements.Module;
+import graph_elements.ModuleTree;
+import graph_elements.Network;
+import graph_elements.Node;
+import graph_elements.Partition;
+import graph_operations.CostFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A search for a hierarchy of modules minimizing the hierarchical map
+ * equation (see {@link CostFunction#cost(ModuleTree, double)}). The network
+ * is first partitioned into modules the way {@link InfomapSearch} does, then
+ * the nodes of each module are partitioned into submodules the same way,
+ * scoring with the module's own codebook, and the split is kept only if it
+ * shortens the codelength compared to leaving the module whole. Submodules
+ * are split in turn until no split helps.
+ *
+ * Splitting alone can only refine the flat partition, whose modules are
+ * usually the finest level of any nesting, so at each level the modules
+ * found are also grouped: modules are moved between groups the same way
+ * nodes are moved between modules, scoring each group's codebook (entering
+ * its modules or exiting it) instead of a module's, and the groups are kept
+ * as an intermediate level if that shortens the codelength.
+ *
+ * Since the codelengths of sibling modules are independent of one another,
+ * the subtree of each module is searched by its own task in the executor
+ * the search was submitted to. Every task is given its own random number
+ * stream, split off before any task is started, so the result doesn't
+ * depend on scheduling.
+ *
+ * @author Zach Tosi
+ */
+public class HierarchicalSearch implements Runnable {
+
+    /**
+     * A split must shorten the codelength by more than this to be kept.
+     */
+    private static final double MIN_IMPROVEMENT = 1E-10;
+
+    private final Network net;
+
+    private final SplittableRandom rand;
+
+    /** Null to split in the executor the search was submitted to. */
+    private final ExecutorService pool;
+
+    /**
+     *
+     * @param net
+     * @param rand
+     */
+    public HierarchicalSearch(Network net, SplittableRandom rand) {
+        this(net, rand, null);
+    }
+
+    /**
+     *
+     * @param net
+     * @param rand
+     *            the random number stream from which the streams of every
+     *            module's search are split
+     * @param pool
+     *            the pool in which modules are split, or null for the one
+     *            the search is submitted to, or the shared one if it's run
+     *            directly or submitted to a plain {@link Executor}; the
+     *            pool's invokeAll must not starve when called from its own
+     *            threads, as those of WorkStealingExecutor and ForkJoinPool
+     *            don't
+     */
+    public HierarchicalSearch(Network net, SplittableRandom rand,
+        ExecutorService pool) {
+        this.net = net;
+        this.rand = rand;
+        this.pool = pool;
+    }
+
+    /**
+     * Submits the search to the shared executor.
+     *
+     * @return the future hierarchy
+     * @see AbstractSearchEngine#sharedExecutor()
+     */
+    public CompletableFuture<ModuleTree> submit() {
+        return submit(AbstractSearchEngine.sharedExecutor());
+    }
+
+    /**
+     * Submits the search to an executor, in which the modules are split
+     * too unless the search was given a pool of its own. The network is
+     * left alone; apply the result with
+     * {@link Network#setModules(ModuleTree)} if wanted.
+     *
+     * @param executor
+     * @return the future hierarchy, completed exceptionally if the search
+     *         fails
+     */
+    public CompletableFuture<ModuleTree> submit(final Executor executor) {
+        final CompletableFuture<ModuleTree> future =
+            new CompletableFuture<ModuleTree>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return; // Cancelled while queued
+                    }
+                    try {
+                        future.complete(search(
+                            executor instanceof ExecutorService
+                                ? (ExecutorService) executor : null));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Searches and sets the network's modules to the hierarchy found.
+     */
+    @Override
+    public void run() {
+        ModuleTree tree = search(null);
+        net.setModules(tree);
+        System.out.println("Hierarchical Entropy: "
+            + net.getHierarchicalEntropy() + " (" + tree.getDepth()
+            + " levels)");
+    }
+
+    /**
+     * @param submittedTo
+     *            the executor the search was submitted to, if it can be
+     *            handed tasks
+     * @return the hierarchy found, without changing the network
+     */
+    private ModuleTree search(ExecutorService submittedTo) {
+        ExecutorService executor = pool;
+        if (executor == null) {
+            executor = submittedTo != null ? submittedTo
+                : AbstractSearchEngine.sharedExecutor();
+        }
+        return new Split(net.createPartition(), null, rand.split(),
+            executor).call();
+    }
+
+    /**
+     * Partitions the nodes of a module into submodules and, if that shortens
+     * the codelength, recursively splits each submodule in a task of its
+     * own.
+     */
+    private static class Split implements Callable<ModuleTree> {
+
+        /** Of the module's nodes, which are moved by the search. */
+        private final Partition partition;
+
+        /** The module, null for the whole network. */
+        private final Module module;
+
+        private final SplittableRandom rand;
+
+        /** In which the submodules are split. */
+        private final ExecutorService executor;
+
+        public Split(Partition partition, Module module,
+            SplittableRandom rand, ExecutorService executor) {
+            this.partition = partition;
+            this.module = module;
+            this.rand = rand;
+            this.executor = executor;
+        }
+
+        @Override
+        public ModuleTree call() {
+            double exit = module == null ? 0 : module.getExitProbability();
+            double nodeEntropy = 0;
+            for (int i = 0, n = partition.getNumNodes(); i < n; i++) {
+                nodeEntropy -= CostFunction.plogp(partition.getNodeFreq(i));
+            }
+            CostFunction costFunction = new CostFunction(partition,
+                nodeEntropy, exit);
+            InfomapSearch.optimize(partition, costFunction, rand);
+            if (module != null) {
+                double unsplit = CostFunction.plogp(exit
+                    + module.getSumNodeFrequencies())
+                    - CostFunction.plogp(exit) + nodeEntropy;
+                if (partition.getNumModules() < 2
+                    || costFunction.getCodelength() > unsplit
+                        - MIN_IMPROVEMENT) {
+                    return new ModuleTree(module);
+                }
+            }
+
+            // Modules come out in order of id, as do their members
+            int[] ids = partition.getModuleIds();
+            List<Module> submodules = new ArrayList<Module>(
+                partition.toModules());
+            int[] index = new int[partition.getNumNodes()];
+            for (int k = 0; k < ids.length; k++) {
+                index[ids[k]] = k;
+            }
+            int[][] members = new int[ids.length][];
+            int[] filled = new int[ids.length];
+            for (int k = 0; k < ids.length; k++) {
+                members[k] = new int[partition.getModuleSize(ids[k])];
+            }
+            for (int i = 0, n = partition.getNumNodes(); i < n; i++) {
+                int k = index[partition.getModule(i)];
+                members[k][filled[k]++] = i;
+            }
+
+            // Every module with more than one node is split further; their
+            // partitions are extracted together, in one pass over the nodes
+            int numSplit = 0;
+            for (int k = 0; k < ids.length; k++) {
+                if (members[k].length > 1) {
+                    numSplit++;
+                }
+            }
+            int[][] groups = new int[numSplit][];
+            for (int k = 0, g = 0; k < ids.length; k++) {
+                if (members[k].length > 1) {
+                    groups[g++] = members[k];
+                }
+            }
+            Partition[] restricted = partition.restrict(groups);
+            List<Split> tasks = new ArrayList<Split>(numSplit);
+            SplittableRandom groupRand = rand.split();
+            for (int k = 0, g = 0; k < ids.length; k++) {
+                if (members[k].length > 1) {
+                    tasks.add(new Split(restricted[g++], submodules.get(k),
+                        rand.split(), executor));
+                }
+            }
+            List<ModuleTree> subtrees = AbstractSearchEngine.invokeAll(
+                executor, tasks);
+            List<ModuleTree> children = new ArrayList<ModuleTree>(
+                ids.length);
+            int t = 0;
+            for (int k = 0; k < ids.length; k++) {
+                if (members[k].length > 1) {
+                    children.add(subtrees.get(t++));
+                } else {
+                    children.add(new ModuleTree(submodules.get(k)));
+                }
+            }
+            return new ModuleTree(module, group(children, groupRand));
+        }
+
+        /**
+         * Looks for groups of this task's modules which, as an intermediate
+         * level between them and this task's module, shorten the
+         * codelength.
+         *
+         * @param children
+         *            the trees of the modules of the partition, in order of
+         *            id
+         * @param groupRand
+         * @return the children, some of them gathered under groups if that
+         *         helps
+         */
+        private List<ModuleTree> group(List<ModuleTree> children,
+            SplittableRandom groupRand) {
+            int numModules = children.size();
+            if (numModules < 3) {
+                return children;
+            }
+            // One node per module, coded by the rate at which it's entered
+            Partition groups = partition.coarsen();
+            double[] rates = new double[numModules];
+            double rateEntropy = 0;
+            for (int k = 0; k < numModules; k++) {
+                rates[k] = children.get(k).getExitProbability();
+                rateEntropy -= CostFunction.plogp(rates[k]);
+            }
+            double[] groupRates = rates.clone();
+            double exit = module == null ? 0 : module.getExitProbability();
+            CostFunction costFunction = new CostFunction(rateEntropy, exit);
+            for (int k = 0; k < numModules; k++) {
+                costFunction.addModule(groups.getExitProb(k), rates[k]);
+            }
+            moveModules(groups, rates, groupRates, costFunction, groupRand);
+            if (groups.getNumModules() == numModules
+                || groups.getNumModules() == 1) {
+                return children;
+            }
+
+            List<ModuleTree> grouped = new ArrayList<ModuleTree>();
+            for (int g : groups.getModuleIds()) {
+                int[] members = groups.getMembers(g);
+                if (members.length == 1) {
+                    grouped.add(children.get(members[0]));
+                    continue;
+                }
+                Module union = new Module(partition.getTeleportProb());
+                List<ModuleTree> memberTrees = new ArrayList<ModuleTree>(
+                    members.length);
+                for (int k : members) {
+                    for (Node n : children.get(k).getModule()
+                        .getNodes()) {
+                        union.addNodeQuiet(n);
+                    }
+                    memberTrees.add(children.get(k));
+                }
+                union.calcSumNodeFreqs();
+                union.calcExitProb(partition.getTeleportProb(),
+                    partition.getNetworkSize());
+                grouped.add(new ModuleTree(union, memberTrees));
+            }
+            // Groups of one were scored as if they were a level of their own
+            // and lone modules are better off without, so score exactly
+            if (CostFunction.cost(new ModuleTree(module, grouped), 0)
+                < CostFunction.cost(new ModuleTree(module, children), 0)
+                    - MIN_IMPROVEMENT) {
+                return grouped;
+            }
+            return children;
+        }
+
+        /**
+         * Moves modules between groups in random order, each to the
+         * neighboring group which shortens the codelength the most, until
+         * no move does.
+         */
+        private static void moveModules(Partition groups, double[] rates,
+            double[] groupRates, CostFunction costFunction,
+            SplittableRandom rand) {
+            int n = groups.getNumNodes();
+            int[] order = new int[n];
+            for (int k = 0; k < n; k++) {
+                order[k] = k;
+            }
+            // Each node's edges in both directions, i.e. less than 2n
+            int[] neighbors = new int[2 * n];
+            boolean moved;
+            do {
+                moved = false;
+                for (int i = n - 1; i > 0; i--) {
+                    int j = rand.nextInt(i + 1);
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                }
+                for (int k : order) {
+                    int from = groups.getModule(k);
+                    double newFromExit = groups.getModuleSize(from) > 1
+                        ? groups.calcExitProbWithout(k) : 0;
+                    int best = from;
+                    double bestDelta = -MIN_IMPROVEMENT;
+                    double bestToExit = 0;
+                    int numNeighbors = 0;
+                    for (int e = groups.outStart(k), end = groups.outEnd(k);
+                        e < end; e++) {
+                        neighbors[numNeighbors++] = groups.outTarget(e);
+                    }
+                    for (int e = groups.inStart(k), end = groups.inEnd(k);
+                        e < end; e++) {
+                        neighbors[numNeighbors++] = groups.inSource(e);
+                    }
+                    for (int t = 0; t < numNeighbors; t++) {
+                        int to = groups.getModule(neighbors[t]);
+                        if (to == from) {
+                            continue;
+                        }
+                        double newToExit = groups.calcExitProbWith(k, to);
+                        double delta = costFunction.delta(
+                            groups.getExitProb(from), groupRates[from],
+                            groups.getExitProb(to), groupRates[to],
+                            newFromExit, groupRates[from] - rates[k],
+                            newToExit, groupRates[to] + rates[k]);
+                        if (delta < bestDelta) {
+                            bestDelta = delta;
+                            best = to;
+                            bestToExit = newToExit;
+                        }
+                    }
+                    if (best != from) {
+                        costFunction.update(groups.getExitProb(from),
+                            groupRates[from], groups.getExitProb(best),
+                            groupRates[best], newFromExit, groupRates[from]
+                                - rates[k], bestToExit, groupRates[best]
+                                + rates[k]);
+                        groupRates[from] -= rates[k];
+                        groupRates[best] += rates[k];
+                        groups.moveNode(k, best);
+                        moved = true;
+                    }
+                }
+            } while (moved);
+        }
+
+    }
+
+}
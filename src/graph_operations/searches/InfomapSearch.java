@@ -0,0 +1,280 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import graph_elements.Network;
+import graph_elements.Partition;
+import graph_operations.CostFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The core loop of the Infomap algorithm of Rosvall and Bergstrom. Starting
+ * from the network's modules, nodes are visited in random order and each is
+ * moved to the neighboring module giving the largest decrease in codelength,
+ * over and over until no move decreases it. The modules found are then
+ * aggregated into single nodes and the same local moving is done on the
+ * coarsened network, moving whole modules at a time, and so on until moving
+ * nodes no longer helps. The modules of the coarsest level are projected
+ * back down onto the network's nodes and, as long as the codelength keeps
+ * improving, the whole process is repeated starting from the nodes again,
+ * which lets single nodes leave modules that were merged too eagerly.
+ *
+ * Each pass over the nodes costs time proportional to the number of edges,
+ * since the flows between a node and its neighboring modules are gathered in
+ * one sweep over its edges and every candidate move is scored in constant
+ * time.
+ *
+ * @author Zach Tosi
+ */
+public class InfomapSearch extends AbstractSearchEngine {
+
+    /**
+     * Moves must shorten the codelength by more than this to be made, so
+     * that rounding errors can't make nodes go back and forth forever.
+     */
+    private static final double MIN_IMPROVEMENT = 1E-10;
+
+    /**
+     * The whole process is repeated until a repetition shortens the
+     * codelength by no more than this.
+     */
+    private static final double MIN_ROUND_IMPROVEMENT = 1E-10;
+
+    private final SplittableRandom rand;
+
+    /**
+     *
+     * @param net
+     */
+    public InfomapSearch(Network net) {
+        this(net, new SplittableRandom());
+    }
+
+    /**
+     *
+     * @param net
+     * @param rand
+     *            the random number stream from which the order in which
+     *            nodes are visited is drawn
+     */
+    public InfomapSearch(Network net, SplittableRandom rand) {
+        super(net);
+        this.rand = rand;
+    }
+
+    @Override
+    protected Partition search(StopCondition stop) {
+        Partition partition = net.createPartition();
+        CostFunction costFunction = new CostFunction(partition,
+            net.getNodeEntropy());
+        optimize(partition, costFunction, rand, stop);
+        return partition;
+    }
+
+    /**
+     * Runs the search on a partition, moving its nodes.
+     *
+     * @param partition
+     * @param costFunction
+     *            tracking the partition, kept up to date
+     * @param rand
+     */
+    static void optimize(Partition partition, CostFunction costFunction,
+        SplittableRandom rand) {
+        optimize(partition, costFunction, rand, null);
+    }
+
+    /**
+     * Runs the search on a partition, moving its nodes, stopping after the
+     * current sweep once asked to. The partition is left consistent whenever
+     * it stops: coarser levels reached so far are still projected back.
+     *
+     * @param partition
+     * @param costFunction
+     *            tracking the partition, kept up to date
+     * @param rand
+     * @param stop
+     *            checked after every sweep, coarsening level and repetition,
+     *            or null to never stop early
+     */
+    private static void optimize(Partition partition,
+        CostFunction costFunction, SplittableRandom rand,
+        StopCondition stop) {
+        double before;
+        do {
+            before = costFunction.getCodelength();
+            moveNodes(partition, costFunction, rand, stop);
+            // Coarsen for as long as moving the aggregated modules helps
+            List<Partition> levels = new ArrayList<Partition>();
+            levels.add(partition);
+            Partition level = partition;
+            while (level.getNumModules() > 1 && !isStopped(stop)) {
+                Partition coarse = level.coarsen();
+                costFunction.recalculate(coarse);
+                if (moveNodes(coarse, costFunction, rand, stop) == 0) {
+                    break;
+                }
+                levels.add(coarse);
+                level = coarse;
+            }
+            for (int i = levels.size() - 2; i >= 0; i--) {
+                levels.get(i).project(levels.get(i + 1));
+            }
+            costFunction.recalculate(partition);
+        } while (before - costFunction.getCodelength()
+            > MIN_ROUND_IMPROVEMENT
+            && !isStopped(stop));
+    }
+
+    /** @return true if the (nullable) stop condition has been requested */
+    private static boolean isStopped(StopCondition stop) {
+        return stop != null && stop.isRequested();
+    }
+
+    /**
+     * Repeatedly sweeps over the nodes of the partition in random order,
+     * moving each to the neighboring module which shortens the codelength the
+     * most, until a sweep moves nothing or the search is asked to stop.
+     *
+     * @param partition
+     * @param costFunction
+     *            tracking the partition, kept up to date with the moves
+     * @param rand
+     * @param stop
+     *            checked after every sweep, or null
+     * @return the number of moves made
+     */
+    private static int moveNodes(Partition partition,
+        CostFunction costFunction, SplittableRandom rand,
+        StopCondition stop) {
+        int numNodes = partition.getNumNodes();
+        int[] order = new int[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            order[i] = i;
+        }
+        // Flow between the visited node and each module it is connected to
+        double[] outTo = new double[numNodes];
+        double[] inFrom = new double[numNodes];
+        int[] touched = new int[numNodes];
+        boolean[] isTouched = new boolean[numNodes];
+        int totalMoves = 0;
+        int moves;
+        do {
+            moves = 0;
+            shuffle(order, rand);
+            for (int node : order) {
+                int from = partition.getModule(node);
+                int numTouched = 0;
+                // Flow to nodes outside the partition leaves any module
+                double outTotal = partition.getExternalFlow(node);
+                for (int e = partition.outStart(node), end = partition
+                    .outEnd(node); e < end; e++) {
+                    int target = partition.outTarget(e);
+                    if (target == node) {
+                        continue;
+                    }
+                    int m = partition.getModule(target);
+                    if (!isTouched[m]) {
+                        isTouched[m] = true;
+                        touched[numTouched++] = m;
+                    }
+                    outTo[m] += partition.outFlow(e);
+                    outTotal += partition.outFlow(e);
+                }
+                for (int e = partition.inStart(node), end = partition
+                    .inEnd(node); e < end; e++) {
+                    int source = partition.inSource(e);
+                    if (source == node) {
+                        continue;
+                    }
+                    int m = partition.getModule(source);
+                    if (!isTouched[m]) {
+                        isTouched[m] = true;
+                        touched[numTouched++] = m;
+                    }
+                    inFrom[m] += partition.inFlow(e);
+                }
+
+                int nodeSize = partition.getNodeSize(node);
+                double nodeFreq = partition.getNodeFreq(node);
+                double newFromExit = 0;
+                if (partition.getModuleSize(from) > 1) {
+                    newFromExit = partition.calcExitProb(
+                        partition.getModuleNetworkSize(from) - nodeSize,
+                        partition.getModuleFreq(from) - nodeFreq,
+                        partition.getModuleExitFlow(from)
+                            - (outTotal - outTo[from]) + inFrom[from]);
+                }
+                int bestModule = from;
+                double bestDelta = -MIN_IMPROVEMENT;
+                double bestToExit = 0;
+                for (int t = 0; t < numTouched; t++) {
+                    int m = touched[t];
+                    if (m == from) {
+                        continue;
+                    }
+                    double newToExit = partition.calcExitProb(
+                        partition.getModuleNetworkSize(m) + nodeSize,
+                        partition.getModuleFreq(m) + nodeFreq,
+                        partition.getModuleExitFlow(m)
+                            + (outTotal - outTo[m]) - inFrom[m]);
+                    double delta = costFunction.deltaMove(partition, node,
+                        m, newFromExit, newToExit);
+                    if (delta < bestDelta) {
+                        bestDelta = delta;
+                        bestModule = m;
+                        bestToExit = newToExit;
+                    }
+                }
+                for (int t = 0; t < numTouched; t++) {
+                    int m = touched[t];
+                    outTo[m] = 0;
+                    inFrom[m] = 0;
+                    isTouched[m] = false;
+                }
+
+                if (bestModule != from) {
+                    costFunction.applyMove(partition, node, bestModule,
+                        newFromExit, bestToExit);
+                    partition.moveNode(node, bestModule);
+                    moves++;
+                }
+            }
+            totalMoves += moves;
+        } while (moves > 0 && !isStopped(stop));
+        return totalMoves;
+    }
+
+    /** Fisher-Yates shuffle. */
+    private static void shuffle(int[] order, SplittableRandom rand) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import graph_elements.Network;
+import graph_elements.Partition;
+import graph_operations.CostFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel tempering (replica exchange): several replicas of the partition
+ * are sampled at once, one per temperature of a ladder, each by Metropolis
+ * moves of single nodes between modules. After every round of sweeps the
+ * states of replicas at adjacent temperatures are swapped with the
+ * probability which keeps each replica sampling its own temperature, so good
+ * partitions found while hot get refined while cold and cold replicas stuck
+ * in a local minimum get shaken loose. The best partition seen by any
+ * replica is kept.
+ *
+ * Any number of replicas can be run; the sweeps of a round are submitted to
+ * a bounded pool, by default the long-lived shared one (see
+ * {@link AbstractSearchEngine#sharedExecutor()}). Every replica has its
+ * own random number stream, as does the exchange step, so results don't
+ * depend on how the replicas were scheduled.
+ *
+ * @author Zach Tosi
+ */
+public class ParallelTempering extends AbstractSearchEngine {
+
+    /** Temperatures of the default ladder, in bits. */
+    public static final double DEFAULT_MIN_TEMPERATURE = 1E-4;
+
+    public static final double DEFAULT_MAX_TEMPERATURE = 1E-1;
+
+    public static final int DEFAULT_NUM_EXCHANGES = 200;
+
+    /**
+     * The proportion of proposed moves which take a node to a module of its
+     * own rather than to a neighbor's module.
+     */
+    private static final double SPLIT_PROB = 0.05;
+
+    /** Ascending. */
+    private final double[] temperatures;
+
+    private final int numExchanges;
+
+    /** Sweeps (proposals per node) each replica makes between exchanges. */
+    private final int sweepsPerExchange;
+
+    private final SplittableRandom rand;
+
+    /** The pool replicas are run in, null for the one submitted to. */
+    private final ExecutorService executor;
+
+    private Partition best;
+
+    private double bestCodelength = Double.POSITIVE_INFINITY;
+
+    /**
+     * Uses the default geometric ladder with one replica per processor (but
+     * no fewer than four), one sweep between exchanges and the pool the
+     * search is submitted to.
+     *
+     * @param net
+     * @param rand
+     */
+    public ParallelTempering(Network net, SplittableRandom rand) {
+        this(net, geometricLadder(DEFAULT_MIN_TEMPERATURE,
+            DEFAULT_MAX_TEMPERATURE, Math.max(4, Runtime.getRuntime()
+                .availableProcessors())), DEFAULT_NUM_EXCHANGES, 1, rand,
+            null);
+    }
+
+    /**
+     *
+     * @param net
+     * @param temperatures
+     *            the temperature of each replica in bits, in ascending order
+     * @param numExchanges
+     *            the number of rounds of sweeps followed by exchanges
+     * @param sweepsPerExchange
+     *            the number of moves per node each replica proposes between
+     *            exchanges
+     * @param rand
+     *            the random number stream from which those of the replicas
+     *            are split
+     * @param executor
+     *            the pool the replicas are run in, or null for the one the
+     *            search is submitted to (see {@link #taskExecutor()}); if
+     *            the search itself is submitted to the same pool,
+     *            the pool's invokeAll must not starve when called from its
+     *            own threads, as those of WorkStealingExecutor and
+     *            ForkJoinPool don't
+     */
+    public ParallelTempering(Network net, double[] temperatures,
+        int numExchanges, int sweepsPerExchange, SplittableRandom rand,
+        ExecutorService executor) {
+        super(net);
+        if (temperatures.length == 0) {
+            throw new IllegalArgumentException("At least one temperature is"
+                + " required");
+        }
+        for (int i = 1; i < temperatures.length; i++) {
+            if (temperatures[i] < temperatures[i - 1]) {
+                throw new IllegalArgumentException("Temperatures must be in"
+                    + " ascending order");
+            }
+        }
+        this.temperatures = temperatures.clone();
+        this.numExchanges = numExchanges;
+        this.sweepsPerExchange = sweepsPerExchange;
+        this.rand = rand;
+        this.executor = executor;
+    }
+
+    /**
+     * @param min
+     * @param max
+     * @param numReplicas
+     * @return numReplicas temperatures from min to max with a constant ratio
+     *         between neighbors, which gives roughly even exchange rates
+     *         when the spread of codelengths doesn't depend much on the
+     *         temperature
+     */
+    public static double[] geometricLadder(double min, double max,
+        int numReplicas) {
+        double[] ladder = new double[numReplicas];
+        for (int i = 0; i < numReplicas; i++) {
+            ladder[i] = numReplicas == 1 ? min : min
+                * Math.pow(max / min, (double) i / (numReplicas - 1));
+        }
+        return ladder;
+    }
+
+    @Override
+    protected Partition search(StopCondition stop) {
+        int numReplicas = temperatures.length;
+        try {
+            Partition initial = net.createPartition();
+            best = initial.copy();
+            bestCodelength = new CostFunction(best, net.getNodeEntropy())
+                .getCodelength();
+            // replicas[i] is the one currently at temperatures[i]
+            Replica[] replicas = new Replica[numReplicas];
+            for (int i = 0; i < numReplicas; i++) {
+                replicas[i] = new Replica(initial.copy(), net
+                    .getNodeEntropy(), rand.split());
+            }
+            SplittableRandom exchangeRand = rand.split();
+            List<Callable<Void>> round = new ArrayList<Callable<Void>>(
+                numReplicas);
+            for (int r = 0; r < numExchanges && !stop.isRequested(); r++) {
+                round.clear();
+                for (int i = 0; i < numReplicas; i++) {
+                    replicas[i].temperature = temperatures[i];
+                    round.add(replicas[i]);
+                }
+                for (Future<Void> f : (executor != null ? executor
+                    : taskExecutor()).invokeAll(round)) {
+                    f.get();
+                }
+                for (Replica replica : replicas) {
+                    double codelength = replica.costFunction
+                        .getCodelength();
+                    if (codelength < bestCodelength) {
+                        bestCodelength = codelength;
+                        best = replica.partition.copy();
+                    }
+                }
+                // Alternate between even and odd pairs so that every pair
+                // gets a chance and no replica is in two swaps at once
+                for (int i = r % 2; i + 1 < numReplicas; i += 2) {
+                    double dBeta = 1 / temperatures[i] - 1
+                        / temperatures[i + 1];
+                    double dL = replicas[i].costFunction.getCodelength()
+                        - replicas[i + 1].costFunction.getCodelength();
+                    // Accept with probability min(1, exp(dBeta * dL))
+                    if (dBeta * dL >= 0
+                        || exchangeRand.nextDouble() < Math.exp(dBeta * dL)) {
+                        Replica tmp = replicas[i];
+                        replicas[i] = replicas[i + 1];
+                        replicas[i + 1] = tmp;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+        return best;
+    }
+
+    /**
+     * @return the best partition found by the last run
+     */
+    public Partition getBest() {
+        return best;
+    }
+
+    public double getBestCodelength() {
+        return bestCodelength;
+    }
+
+    /**
+     * A partition sampled at a temperature by Metropolis moves of single
+     * nodes, each to the module of a random neighbor or, now and then, to a
+     * module of its own.
+     */
+    private final class Replica implements Callable<Void> {
+
+        private final Partition partition;
+
+        private final CostFunction costFunction;
+
+        private final SplittableRandom rand;
+
+        /** Set by the engine before every round. */
+        private double temperature;
+
+        /** Where to start looking for an unused module id. */
+        private int emptyCursor;
+
+        public Replica(Partition partition, double nodeEntropy,
+            SplittableRandom rand) {
+            this.partition = partition;
+            this.costFunction = new CostFunction(partition, nodeEntropy);
+            this.rand = rand;
+        }
+
+        @Override
+        public Void call() {
+            int numNodes = partition.getNumNodes();
+            for (int s = 0, n = sweepsPerExchange * numNodes; s < n; s++) {
+                int node = rand.nextInt(numNodes);
+                int to = propose(node);
+                if (to == -1) {
+                    continue;
+                }
+                double newFromExit = partition.calcExitProbWithout(node);
+                double newToExit = partition.calcExitProbWith(node, to);
+                double delta = costFunction.deltaMove(partition, node, to,
+                    newFromExit, newToExit);
+                if (delta <= 0
+                    || rand.nextDouble() < Math.exp(-delta / temperature)) {
+                    costFunction.applyMove(partition, node, to, newFromExit,
+                        newToExit);
+                    partition.moveNode(node, to);
+                }
+            }
+            // Discard the rounding error accumulated by the running sums
+            partition.recalculate();
+            costFunction.recalculate(partition);
+            return null;
+        }
+
+        /**
+         * @return the module to propose moving the node to, or -1 if there
+         *         is nothing to propose
+         */
+        private int propose(int node) {
+            int from = partition.getModule(node);
+            if (rand.nextDouble() < SPLIT_PROB) {
+                return partition.getModuleSize(from) > 1 ? emptyModule() : -1;
+            }
+            int outDegree = partition.outEnd(node) - partition.outStart(node);
+            int inDegree = partition.inEnd(node) - partition.inStart(node);
+            if (outDegree + inDegree == 0) {
+                return -1;
+            }
+            int k = rand.nextInt(outDegree + inDegree);
+            int neighbor = k < outDegree ? partition.outTarget(partition
+                .outStart(node) + k) : partition.inSource(partition
+                .inStart(node) + k - outDegree);
+            int to = partition.getModule(neighbor);
+            return to == from ? -1 : to;
+        }
+
+        /**
+         * @return an id no node is using, which exists as long as some module
+         *         has more than one node
+         */
+        private int emptyModule() {
+            int numIds = partition.getNumNodes();
+            while (partition.getModuleSize(emptyCursor) > 0) {
+                emptyCursor = (emptyCursor + 1) % numIds;
+            }
+            return emptyCursor;
+        }
+
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import graph_elements.Module;
+import graph_elements.Network;
+import graph_elements.Partition;
+import graph_operations.CostFunction;
+import graph_operations.ModuleFlowTable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A greedy agglomerative search in the style of Clauset, Newman and Moore:
+ * starting from the network's modules it repeatedly merges the connected
+ * pair of modules whose merger shortens the codelength the most, until no
+ * merger shortens it. Rather than rescoring every pair after each merge the
+ * way {@link GreedySearch} does, candidate mergers of connected pairs are
+ * kept in a priority queue ordered by their change in codelength, and after
+ * a merge only the candidates involving the merged module are replaced.
+ *
+ * A candidate's change in codelength is the sum of a part which depends on
+ * its two modules alone and one which depends on the sum of the exit
+ * probabilities of all modules (see
+ * {@link CostFunction#deltaMergeLocal(Module, Module, double)}). Every
+ * candidate keeps the first and its change in exit probability, so that it
+ * can be rescored in constant time, without looking at any edges, once other
+ * merges have changed the second. Queued values are therefore estimates: the
+ * candidate at the head of the queue is rescored and only merged if it is
+ * still at least as good as the next one; otherwise it is requeued with its
+ * new value. When the rescored head no longer shortens the codelength, all
+ * candidates are rescored, but only if the sum of exit probabilities has
+ * changed since they last were; otherwise the search ends.
+ *
+ * What this guarantees is that the search only ever makes mergers which,
+ * when made, shorten the codelength (unlike {@link GreedySearch}, whose
+ * first merger is made whatever it costs), and that it ends at a partition
+ * which no single merger of connected modules shortens. Each merger is the
+ * best one available but for candidates whose queued value has gone stale.
+ * Each merge costs O(d log Q) for the d modules connected to the merged one
+ * and Q queued candidates, each requeued candidate O(log Q) and each full
+ * rescore O(Q). A full rescore only follows a merge after which no queued
+ * candidate, rescored, shortens the codelength.
+ *
+ * @author Zach Tosi
+ */
+public class PriorityGreedySearch extends AbstractSearchEngine {
+
+    /**
+     *
+     * @param net
+     */
+    public PriorityGreedySearch(Network net) {
+        super(net);
+    }
+
+    @Override
+    protected Partition search(StopCondition stop) {
+        // Modules are merged in place, so work on copies
+        Set<Module> partitioning = new LinkedHashSet<Module>();
+        for (Module m : net.getModules()) {
+            partitioning.add(m.deepCopy());
+        }
+        CostFunction costFunction = new CostFunction(partitioning,
+            net.getNodeEntropy());
+        ModuleFlowTable flowTable = new ModuleFlowTable(partitioning);
+        // Bumped every time a module changes, so that candidates scored
+        // against an older version of one of their modules can be discarded
+        Map<Module, Integer> versions = new IdentityHashMap<Module, Integer>();
+        for (Module m : partitioning) {
+            versions.put(m, 0);
+        }
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(
+            Math.max(1, partitioning.size()), Candidate.BY_DELTA);
+        long sequence = 0;
+        Set<Module> proposed = new LinkedHashSet<Module>();
+        for (Module m1 : partitioning) {
+            proposed.add(m1);
+            for (Module m2 : flowTable.getNeighbors(m1)) {
+                if (!proposed.contains(m2)) {
+                    queue.add(new Candidate(m1, m2, versions, sequence++,
+                        flowTable.getFlowBetween(m1, m2), costFunction));
+                }
+            }
+        }
+
+        // The sum of exit probabilities every candidate was last scored at
+        double rescoredSumExit = costFunction.getSumExit();
+        while (!queue.isEmpty() && !stop.isRequested()) {
+            Candidate best = queue.poll();
+            if (!best.isCurrent(versions)) {
+                continue;
+            }
+            best.rescore(costFunction);
+            if (!queue.isEmpty() && best.delta > queue.peek().delta) {
+                queue.add(best); // Got worse since it was scored
+                continue;
+            }
+            if (best.delta >= 0) {
+                if (costFunction.getSumExit() == rescoredSumExit) {
+                    break; // Every queued value is current
+                }
+                // Nothing looks like an improvement anymore, make sure
+                queue.add(best);
+                rescoredSumExit = costFunction.getSumExit();
+                if (!rescoreAll(queue, versions, costFunction)) {
+                    break;
+                }
+                continue;
+            }
+
+            Module keep = best.m1;
+            Module gone = best.m2;
+            if (gone.getSize() > keep.getSize()) {
+                keep = best.m2;
+                gone = best.m1;
+            }
+            costFunction.applyMerge(keep, gone, best.mergedExit);
+            keep.mergeInto(gone, best.flowBetween, net.getTeleportProb(),
+                net.getNumNodes());
+            flowTable.merge(keep, gone, keep);
+            partitioning.remove(gone);
+            versions.remove(gone);
+            versions.put(keep, versions.get(keep) + 1);
+            for (Module other : flowTable.getNeighbors(keep)) {
+                queue.add(new Candidate(keep, other, versions, sequence++,
+                    flowTable.getFlowBetween(keep, other), costFunction));
+            }
+        }
+
+        return new Partition(net.getFlatNodeList(), partitioning,
+            net.getTeleportProb());
+    }
+
+    /**
+     * Rescores every current candidate, in constant time each, and rebuilds
+     * the queue from them.
+     *
+     * @return true if any of them would now shorten the codelength
+     */
+    private static boolean rescoreAll(PriorityQueue<Candidate> queue,
+        Map<Module, Integer> versions, CostFunction costFunction) {
+        List<Candidate> current = new ArrayList<Candidate>(queue.size());
+        boolean improves = false;
+        for (Candidate c : queue) {
+            if (c.isCurrent(versions)) {
+                c.rescore(costFunction);
+                improves |= c.delta < 0;
+                current.add(c);
+            }
+        }
+        queue.clear();
+        queue.addAll(current);
+        return improves;
+    }
+
+    /**
+     * A proposed merger of two connected modules, scored against particular
+     * versions of them.
+     */
+    private static final class Candidate {
+
+        /** Best (most negative) change in codelength first, then oldest. */
+        static final Comparator<Candidate> BY_DELTA =
+            new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate c1, Candidate c2) {
+                    int cmp = Double.compare(c1.delta, c2.delta);
+                    return cmp != 0 ? cmp : Long.compare(c1.sequence,
+                        c2.sequence);
+                }
+            };
+
+        final Module m1;
+
+        final Module m2;
+
+        final int version1;
+
+        final int version2;
+
+        final long sequence;
+
+        /** The flow along the edges between the modules. */
+        final double flowBetween;
+
+        /** The exit probability of the merged module. */
+        final double mergedExit;
+
+        /** The change in the sum of exit probabilities. */
+        final double exitChange;
+
+        /** The change in codelength but for the term shared by all. */
+        final double localDelta;
+
+        /** The change in codelength as of the last (re)scoring. */
+        double delta;
+
+        Candidate(Module m1, Module m2, Map<Module, Integer> versions,
+            long sequence, double flowBetween, CostFunction costFunction) {
+            this.m1 = m1;
+            this.m2 = m2;
+            this.version1 = versions.get(m1);
+            this.version2 = versions.get(m2);
+            this.sequence = sequence;
+            this.flowBetween = flowBetween;
+            mergedExit = m1.calcMergedExitProb(m2, flowBetween);
+            exitChange = mergedExit - m1.getExitProbability()
+                - m2.getExitProbability();
+            localDelta = costFunction.deltaMergeLocal(m1, m2, mergedExit);
+            rescore(costFunction);
+        }
+
+        /**
+         * Updates the change in codelength for the current sum of exit
+         * probabilities; the modules must not have changed.
+         */
+        void rescore(CostFunction costFunction) {
+            delta = localDelta + costFunction.deltaSumExit(exitChange);
+        }
+
+        /**
+         * @return false if either module has since been merged away or
+         *         changed
+         */
+        boolean isCurrent(Map<Module, Integer> versions) {
+            Integer v1 = versions.get(m1);
+            Integer v2 = versions.get(m2);
+            return v1 != null && v2 != null && v1 == version1
+                && v2 == version2;
+        }
+
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import graph_elements.Partition;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A search for a partition of a network which runs as a task on an
+ * executor and delivers its result through a future. Searches don't change
+ * the network; apply the result with
+ * {@link graph_elements.Network#setModules(Partition)} if wanted.
+ *
+ * Cancelling the returned future stops the search at its next check, which
+ * every search makes at least once per pass over its candidates. A search
+ * which reaches its deadline stops the same way but completes normally with
+ * the best partition it has found so far. A search which fails completes
+ * the future exceptionally. An instance runs one search at a time.
+ *
+ * @author Zach Tosi
+ */
+public interface SearchEngine {
+
+    /**
+     * Submits the search to an executor.
+     *
+     * @param executor
+     * @return the future partition
+     */
+    CompletableFuture<Partition> submit(Executor executor);
+
+    /**
+     * Submits the search to an executor, to be stopped after the given time
+     * (counted from now, so including any time spent queued).
+     *
+     * @param executor
+     * @param timeout
+     * @param unit
+     * @return the future partition, the best found by the deadline if it
+     *         is reached
+     */
+    CompletableFuture<Partition> submit(Executor executor, long timeout,
+        TimeUnit unit);
+
+}
@@ -1,22 +1,82 @@
 package main;
 
+import graph_elements.ModuleTree;
 import graph_elements.Network;
+import graph_elements.Network.FlowMethod;
+import graph_elements.Partition;
 import graph_io.MatrixReader;
 import graph_io.gephi_io.GephiXMLOut;
-import graph_operations.searches.GreedySearch;
+import graph_operations.PowerIteration;
+import graph_operations.RandomWalker;
+import graph_operations.TransitionMatrix;
+import graph_operations.searches.HierarchicalSearch;
+import graph_operations.searches.InfomapSearch;
+import graph_operations.searches.PriorityGreedySearch;
+import graph_operations.searches.SearchEngine;
 
 import java.io.FileReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.CountDownLatch;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class Run {
 
     public static final double DEFAULT_TELEPORT_PROBABILITY = 0.15;
 
+    /**
+     * Optional arguments: "--seed n" seeds the master random number stream
+     * from which every stochastic part of the run draws its own stream, making
+     * the whole run reproducible, "--walker" generates node frequencies
+     * with random walkers instead of power iteration, "--hierarchical"
+     * searches for a hierarchy of modules instead of a flat partition and
+     * "--greedy" searches for a flat partition by greedily merging modules
+     * (see {@link PriorityGreedySearch}) instead of with Infomap. Of the last
+     * two, whichever comes last applies.
+     * 
+     * @param args
+     */
     public static void main(String[] args) {
+        SplittableRandom masterRand = new SplittableRandom();
+        FlowMethod flowMethod = FlowMethod.POWER_ITERATION;
+        SearchMethod searchMethod = SearchMethod.INFOMAP;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seed") && i + 1 < args.length) {
+                masterRand = new SplittableRandom(Long.parseLong(args[++i]));
+            } else if (args[i].equals("--walker")) {
+                flowMethod = FlowMethod.RANDOM_WALKER;
+            } else if (args[i].equals("--hierarchical")) {
+                searchMethod = SearchMethod.HIERARCHICAL;
+            } else if (args[i].equals("--greedy")) {
+                searchMethod = SearchMethod.PRIORITY_GREEDY;
+            }
+        }
         Scanner scanner = new Scanner(System.in);
         Scanner horc = null;
         System.out.println("Begin? y/n");
+        int numCores = Runtime.getRuntime().availableProcessors();
+        ExecutorService io = newIoExecutor(numCores);
+        ForkJoinPool cpu = new ForkJoinPool(numCores);
+        // Recordings in flight at once, from the start of their read to the
+        // end of their write, which bounds how many matrices are held in
+        // memory while the CPU stages catch up with the reads: enough for
+        // every core to have one in each stage
+        Semaphore window = new Semaphore(3 * numCores);
+        List<CompletableFuture<Void>> cultures =
+            new ArrayList<CompletableFuture<Void>>();
         try {
             try {
                 String responseString = scanner.next();
@@ -31,44 +91,11 @@ public class Run {
                         } else {
                             type = "Hip";
                         }
-                        String xyFilename =
-                            "../Neuro-Infomap_Resources/XYCoordinates/Hip_XY/Hip"
-                                + i + "XY";
-                        for (int j = 1; j <= 10; j++) {
-                            String teFilename =
-                                "../Neuro-Infomap_Resources/TEMatrixFiles/TE_Hip_Normal/"
-                                    + "TEHip" + i + "_" + j;
-                            String graphFilename =
-                                "../Neuro-Infomap_Resources/GephiXMLFiles/"
-                                    + type + i + "_"
-                                    + j;
-                            String graphFileNameHeat =
-                                "../Neuro-Infomap_Resources/GephiXMLFiles/"
-                                    + type + i + "_"
-                                    + j
-                                    + "NodeHeat";
-                            System.out.println(teFilename);
-                            Network net =
-                                new Network(MatrixReader
-                                    .matrixReader(teFilename),
-                                    xyFilename, DEFAULT_TELEPORT_PROBABILITY,
-                                    true);
-                            CountDownLatch c = new CountDownLatch(1);
-                            GreedySearch searcher = new GreedySearch(net);
-                            searcher.setExternalLatch(c);
-                            searcher.search();
-                            try {
-                                c.await();
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            GephiXMLOut gxmlWriter =
-                                new GephiXMLOut(net, graphFilename);
-                            gxmlWriter.createGEXFFromNet(false);
-                            gxmlWriter.setFilename(graphFileNameHeat);
-                            gxmlWriter.createGEXFFromNet(true);
-                        }
+                        cultures.add(processCulture(i, type, flowMethod,
+                            searchMethod, masterRand, window, io, cpu));
                     }
+                    CompletableFuture.allOf(cultures.toArray(
+                        new CompletableFuture<?>[cultures.size()])).join();
                 }
 
             } catch (Exception e) {
@@ -77,8 +104,227 @@ public class Run {
         } finally {
             scanner.close();
             horc.close();
+            io.shutdown();
+            cpu.shutdown();
             System.exit(0); // Done.
         }
 
     }
+
+    /**
+     * Queues up every stage of the recordings of a culture: each matrix is
+     * read on the I/O executor, its flow is solved and its modules searched
+     * for on the CPU pool and its GEXF files are written on the I/O
+     * executor again. Nothing is read before a permit of the window is
+     * taken, blocking the caller until one is free, and the permit is given
+     * back once the recording is written. Recordings of different cultures
+     * overlap freely; when flow is found by power iteration, that of each
+     * recording waits for the one before it, whose solution it starts from
+     * (or starts from scratch, if that recording failed).
+     * The random number streams are split off here, in the same order as a
+     * sequential run would, so a seeded batch gives the same results however
+     * the stages are scheduled.
+     *
+     * @return completes once all the culture's files are written
+     * @throws InterruptedException
+     *             if interrupted while waiting for a permit
+     */
+    private static CompletableFuture<Void> processCulture(final int i,
+        final String type, final FlowMethod flowMethod,
+        final SearchMethod searchMethod, SplittableRandom masterRand,
+        final Semaphore window, ExecutorService io, final ForkJoinPool cpu)
+        throws InterruptedException {
+        final String xyFilename =
+            "../Neuro-Infomap_Resources/XYCoordinates/Hip_XY/Hip"
+                + i + "XY";
+        CompletableFuture<double[]> previousFreqs = CompletableFuture
+            .completedFuture(null);
+        List<CompletableFuture<Void>> writes =
+            new ArrayList<CompletableFuture<Void>>();
+        for (int j = 1; j <= 10; j++) {
+            final String teFilename =
+                "../Neuro-Infomap_Resources/TEMatrixFiles/TE_Hip_Normal/"
+                    + "TEHip" + i + "_" + j;
+            final String graphFilename =
+                "../Neuro-Infomap_Resources/GephiXMLFiles/"
+                    + type + i + "_"
+                    + j;
+            final String graphFileNameHeat = graphFilename + "NodeHeat";
+            final SplittableRandom walkerRand =
+                flowMethod == FlowMethod.POWER_ITERATION ? null : masterRand
+                    .split();
+            final SplittableRandom searchRand = masterRand.split();
+
+            window.acquire();
+            CompletableFuture<double[][]> read = CompletableFuture
+                .supplyAsync(new Supplier<double[][]>() {
+                    @Override
+                    public double[][] get() {
+                        System.out.println(teFilename);
+                        return MatrixReader.matrixReader(teFilename);
+                    }
+                }, io);
+            final CompletableFuture<double[]> freqs;
+            if (flowMethod == FlowMethod.POWER_ITERATION) {
+                // Recordings of a culture differ only partially, so each
+                // one's flow is solved starting from that of the one before.
+                freqs = read.thenCombineAsync(previousFreqs,
+                    new BiFunction<double[][], double[], double[]>() {
+                        @Override
+                        public double[] apply(double[][] weightMat,
+                            double[] previous) {
+                            if (previous != null
+                                && previous.length != weightMat.length) {
+                                previous = null;
+                            }
+                            return PowerIteration.generate_freqs(
+                                TransitionMatrix.fromWeights(weightMat),
+                                DEFAULT_TELEPORT_PROBABILITY, previous, cpu);
+                        }
+                    }, cpu);
+                // A failed recording doesn't fail the rest of the culture:
+                // the next one just doesn't get a starting point
+                previousFreqs = freqs.exceptionally(
+                    new Function<Throwable, double[]>() {
+                        @Override
+                        public double[] apply(Throwable t) {
+                            return null;
+                        }
+                    });
+            } else {
+                freqs = read.thenApplyAsync(
+                    new Function<double[][], double[]>() {
+                        @Override
+                        public double[] apply(double[][] weightMat) {
+                            return RandomWalker.generate_freqs(
+                                TransitionMatrix.fromWeights(weightMat),
+                                DEFAULT_TELEPORT_PROBABILITY, walkerRand,
+                                cpu);
+                        }
+                    }, cpu);
+            }
+            CompletableFuture<Network> flow = read.thenCombineAsync(freqs,
+                new BiFunction<double[][], double[], Network>() {
+                    @Override
+                    public Network apply(double[][] weightMat,
+                        double[] relativeFreqs) {
+                        return new Network(weightMat, relativeFreqs,
+                            xyFilename, DEFAULT_TELEPORT_PROBABILITY, true);
+                    }
+                }, cpu);
+            CompletableFuture<Network> searched = flow.thenCompose(
+                new Function<Network, CompletionStage<Network>>() {
+                    @Override
+                    public CompletionStage<Network> apply(Network net) {
+                        switch (searchMethod) {
+                        case HIERARCHICAL:
+                            return searchHierarchy(net, searchRand, cpu);
+                        case PRIORITY_GREEDY:
+                            return searchFlat(net,
+                                new PriorityGreedySearch(net), cpu);
+                        default:
+                            return searchFlat(net,
+                                new InfomapSearch(net, searchRand), cpu);
+                        }
+                    }
+                });
+            writes.add(searched.thenAcceptAsync(new Consumer<Network>() {
+                @Override
+                public void accept(Network net) {
+                    GephiXMLOut gxmlWriter =
+                        new GephiXMLOut(net, graphFilename);
+                    gxmlWriter.createGEXFFromNet(false);
+                    gxmlWriter.setFilename(graphFileNameHeat);
+                    gxmlWriter.createGEXFFromNet(true);
+                }
+            }, io).whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void v, Throwable t) {
+                    window.release();
+                }
+            }));
+        }
+        return CompletableFuture.allOf(writes.toArray(
+            new CompletableFuture<?>[writes.size()]));
+    }
+
+    /**
+     * Searches for a flat partition of the network on the CPU pool.
+     *
+     * @param net
+     * @param search
+     *            the search of the network to be run
+     * @param cpu
+     * @return the network, once its modules are set to those found
+     */
+    private static CompletableFuture<Network> searchFlat(final Network net,
+        SearchEngine search, ForkJoinPool cpu) {
+        return search.submit(cpu).thenApply(
+            new Function<Partition, Network>() {
+                @Override
+                public Network apply(Partition partition) {
+                    net.setModules(partition);
+                    System.out.println("Hierarchical Entropy: "
+                        + net.getHierarchicalEntropy());
+                    return net;
+                }
+            });
+    }
+
+    /**
+     * Searches for a hierarchy of modules of the network on the CPU pool,
+     * which its submodules are split in as well.
+     *
+     * @return the network, once its modules are set to those found
+     */
+    private static CompletableFuture<Network> searchHierarchy(
+        final Network net, SplittableRandom rand, ForkJoinPool cpu) {
+        return new HierarchicalSearch(net, rand).submit(cpu).thenApply(
+            new Function<ModuleTree, Network>() {
+                @Override
+                public Network apply(ModuleTree tree) {
+                    net.setModules(tree);
+                    System.out.println("Hierarchical Entropy: "
+                        + net.getHierarchicalEntropy() + " ("
+                        + tree.getDepth() + " levels)");
+                    return net;
+                }
+            });
+    }
+
+    /**
+     * @return an executor for the reading and writing stages: one starting a
+     *         virtual thread per task where the runtime has them (Java 21
+     *         and up), since those cost next to nothing while blocked on the
+     *         disk, and otherwise a pool of daemon threads, one per
+     *         processor like the carriers of virtual threads, since parsing
+     *         a matrix keeps a thread as busy as the disk does
+     */
+    private static ExecutorService newIoExecutor(int numThreads) {
+        try {
+            Method factory = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(numThreads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "io");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+    }
+
+    /** How the modules of each recording are searched for. */
+    private enum SearchMethod {
+        /** A flat partition, see InfomapSearch. */
+        INFOMAP,
+        /** A flat partition by greedy merging, see PriorityGreedySearch. */
+        PRIORITY_GREEDY,
+        /** A hierarchy of modules, see HierarchicalSearch. */
+        HIERARCHICAL;
+    }
 }
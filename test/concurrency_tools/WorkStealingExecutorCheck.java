@@ -0,0 +1,209 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package concurrency_tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the guarantees of {@link WorkStealingExecutor} which its callers
+ * rely on: that shutdown runs every task accepted before it, that outside
+ * submitters block at capacity and that invokeAll from a worker doesn't
+ * starve. Run as a program; exits with an AssertionError on failure.
+ *
+ * @author Zach Tosi
+ */
+public class WorkStealingExecutorCheck {
+
+    public static void main(String[] args) throws Exception {
+        for (int rep = 0; rep < 20; rep++) {
+            checkDrainingShutdown();
+        }
+        checkBackpressure();
+        checkNestedInvokeAll();
+        System.out.println("WorkStealingExecutor: all checks passed");
+    }
+
+    /**
+     * Every task submitted before shutdown(), and every task those submit
+     * while the workers drain, is performed; later outside submissions are
+     * rejected.
+     */
+    private static void checkDrainingShutdown() throws Exception {
+        final WorkStealingExecutor executor = new WorkStealingExecutor(4, 64);
+        final AtomicInteger performed = new AtomicInteger();
+        List<Task> batch = new ArrayList<Task>();
+        int expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            final boolean spawn = i % 7 == 0;
+            batch.add(new Task() {
+                @Override
+                public void perform() {
+                    performed.incrementAndGet();
+                    if (spawn) {
+                        executor.submit(new Counter(performed));
+                    }
+                }
+
+                @Override
+                public boolean isPoison() {
+                    return false;
+                }
+            });
+            expected += spawn ? 2 : 1;
+        }
+        executor.submitAll(batch);
+        for (int i = 0; i < 500; i++) {
+            executor.submit(new Counter(performed));
+        }
+        expected += 500;
+        executor.shutdown();
+        check(executor.awaitTermination(10, TimeUnit.SECONDS),
+            "workers did not exit");
+        check(performed.get() == expected, "performed " + performed.get()
+            + " of " + expected + " tasks");
+        try {
+            executor.submit(new Counter(performed));
+            check(false, "submission after shutdown was accepted");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * With the only worker busy and the deques full, an outside submitter
+     * blocks until the worker takes a task.
+     */
+    private static void checkBackpressure() throws Exception {
+        final WorkStealingExecutor executor = new WorkStealingExecutor(1, 2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger performed = new AtomicInteger();
+        executor.submit(new Task() {
+            @Override
+            public void perform() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public boolean isPoison() {
+                return false;
+            }
+        });
+        started.await();
+        executor.submit(new Counter(performed));
+        executor.submit(new Counter(performed));
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.submit(new Counter(performed));
+                submitted.countDown();
+            }
+        });
+        submitter.start();
+        check(!submitted.await(200, TimeUnit.MILLISECONDS),
+            "submitter did not block at capacity");
+        check(submitter.getState() == Thread.State.WAITING,
+            "submitter is " + submitter.getState() + ", not waiting");
+        release.countDown();
+        check(submitted.await(10, TimeUnit.SECONDS),
+            "submitter was not let in once there was room");
+        executor.shutdown();
+        check(executor.awaitTermination(10, TimeUnit.SECONDS),
+            "workers did not exit");
+        check(performed.get() == 3, "performed " + performed.get()
+            + " of 3 tasks");
+    }
+
+    /**
+     * A task fanning out with invokeAll on a single worker executor
+     * completes, its worker performing the subtasks itself.
+     */
+    private static void checkNestedInvokeAll() throws Exception {
+        final WorkStealingExecutor executor = new WorkStealingExecutor(1);
+        Future<Integer> outer = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                List<Callable<Integer>> inner =
+                    new ArrayList<Callable<Integer>>();
+                for (int i = 0; i < 100; i++) {
+                    final int k = i;
+                    inner.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return k;
+                        }
+                    });
+                }
+                int sum = 0;
+                for (Future<Integer> f : executor.invokeAll(inner)) {
+                    sum += f.get();
+                }
+                return sum;
+            }
+        });
+        check(outer.get(10, TimeUnit.SECONDS) == 4950,
+            "nested invokeAll gave the wrong result");
+        executor.shutdown();
+        check(executor.awaitTermination(10, TimeUnit.SECONDS),
+            "workers did not exit");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static final class Counter implements Task {
+
+        private final AtomicInteger count;
+
+        Counter(AtomicInteger count) {
+            this.count = count;
+        }
+
+        @Override
+        public void perform() {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public boolean isPoison() {
+            return false;
+        }
+
+    }
+
+}
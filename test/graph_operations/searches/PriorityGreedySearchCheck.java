@@ -0,0 +1,227 @@
+/*
+ * Part of infomap-toolkit--a java based concurrent toolkit for running the
+ * infomap algorithm (all credit for the algorithm goes to Martin Rosvall and
+ * Carl T. Bergstrom).
+ *
+ * Copyright (C) 2014 Zach Tosi
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package graph_operations.searches;
+
+import graph_elements.Module;
+import graph_elements.Network;
+import graph_elements.Network.FlowMethod;
+import graph_elements.Partition;
+import graph_operations.CostFunction;
+import graph_operations.ModuleFlowTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Checks {@link PriorityGreedySearch} against a reference search which,
+ * after every merge, rescores every connected pair of modules from scratch
+ * and merges the best one for as long as that shortens the codelength: on
+ * rings of densely connected groups and sparse random networks, both should
+ * end with the same partition. Run as a program; exits with an
+ * AssertionError on failure.
+ *
+ * @author Zach Tosi
+ */
+public class PriorityGreedySearchCheck {
+
+    private static final double TOLERANCE = 1E-10;
+
+    public static void main(String[] args) throws Exception {
+        for (int groups = 2; groups <= 6; groups++) {
+            checkSamePartition("ring of " + groups + " groups",
+                ringOfGroups(groups, 5));
+        }
+        SplittableRandom rand = new SplittableRandom(1);
+        for (int rep = 0; rep < 10; rep++) {
+            checkSamePartition("random network " + rep,
+                randomNetwork(30, 0.08, rand.split()));
+        }
+        for (int rep = 0; rep < 3; rep++) {
+            checkSamePartition("larger random network " + rep,
+                randomNetwork(200, 0.02, rand.split()));
+        }
+        System.out.println("PriorityGreedySearch: all checks passed");
+    }
+
+    /**
+     * Searches the network with the reference and the priority queue and
+     * compares the results.
+     */
+    private static void checkSamePartition(String name, double[][] weights)
+        throws Exception {
+        File xy = writeCoordinates(weights.length);
+        try {
+            Network net = new Network(weights, xy.getPath(), 0.15, false,
+                FlowMethod.POWER_ITERATION, new SplittableRandom(0));
+            Partition reference = referenceSearch(net);
+            Partition priority = new PriorityGreedySearch(net).submit()
+                .get();
+            double referenceCost = new CostFunction(reference,
+                net.getNodeEntropy()).getCodelength();
+            double priorityCost = new CostFunction(priority,
+                net.getNodeEntropy()).getCodelength();
+            check(Math.abs(referenceCost - priorityCost) < TOLERANCE, name
+                + ": codelengths differ, " + referenceCost + " (reference) vs "
+                + priorityCost + " (priority)");
+            check(Arrays.equals(canonicalModules(reference),
+                canonicalModules(priority)), name
+                + ": partitions differ");
+        } finally {
+            xy.delete();
+        }
+    }
+
+    /**
+     * @return the partition found by merging, one at a time, whichever
+     *         connected pair of modules shortens the codelength the most,
+     *         until none does
+     */
+    private static Partition referenceSearch(Network net) {
+        Set<Module> modules = new LinkedHashSet<Module>();
+        for (Module m : net.getModules()) {
+            modules.add(m.deepCopy());
+        }
+        CostFunction costFunction = new CostFunction(modules,
+            net.getNodeEntropy());
+        ModuleFlowTable flowTable = new ModuleFlowTable(modules);
+        while (true) {
+            Module best1 = null;
+            Module best2 = null;
+            double bestDelta = 0;
+            for (Module m1 : modules) {
+                for (Module m2 : flowTable.getNeighbors(m1)) {
+                    double delta = costFunction.deltaMerge(m1, m2,
+                        m1.calcMergedExitProb(m2,
+                            flowTable.getFlowBetween(m1, m2)));
+                    if (delta < bestDelta) {
+                        best1 = m1;
+                        best2 = m2;
+                        bestDelta = delta;
+                    }
+                }
+            }
+            if (best1 == null) {
+                break;
+            }
+            Module keep = best1;
+            Module gone = best2;
+            if (gone.getSize() > keep.getSize()) {
+                keep = best2;
+                gone = best1;
+            }
+            double flowBetween = flowTable.getFlowBetween(keep, gone);
+            costFunction.applyMerge(keep, gone, keep.calcMergedExitProb(
+                gone, flowBetween));
+            keep.mergeInto(gone, flowBetween, net.getTeleportProb(),
+                net.getNumNodes());
+            flowTable.merge(keep, gone, keep);
+            modules.remove(gone);
+        }
+        return new Partition(net.getFlatNodeList(), modules,
+            net.getTeleportProb());
+    }
+
+    /**
+     * @return for each node, the first node of its module, which is the
+     *         same for equal partitions however their modules are numbered
+     */
+    private static int[] canonicalModules(Partition partition) {
+        int n = partition.getNumNodes();
+        int[] firstOfModule = new int[n];
+        Arrays.fill(firstOfModule, -1);
+        int[] canonical = new int[n];
+        for (int i = 0; i < n; i++) {
+            int m = partition.getModule(i);
+            if (firstOfModule[m] == -1) {
+                firstOfModule[m] = i;
+            }
+            canonical[i] = firstOfModule[m];
+        }
+        return canonical;
+    }
+
+    /**
+     * @return a directed ring of groups, each fully connected within itself
+     *         and weakly connected to the next
+     */
+    private static double[][] ringOfGroups(int numGroups, int groupSize) {
+        int n = numGroups * groupSize;
+        double[][] weights = new double[n][n];
+        for (int g = 0; g < numGroups; g++) {
+            int start = g * groupSize;
+            for (int i = start; i < start + groupSize; i++) {
+                for (int j = start; j < start + groupSize; j++) {
+                    if (i != j) {
+                        weights[i][j] = 1;
+                    }
+                }
+            }
+            weights[start][((g + 1) % numGroups) * groupSize] = 0.1;
+        }
+        return weights;
+    }
+
+    /**
+     * @return a directed network whose edges each exist with the given
+     *         probability and have uniformly random weights
+     */
+    private static double[][] randomNetwork(int n, double density,
+        SplittableRandom rand) {
+        double[][] weights = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i != j && rand.nextDouble() < density) {
+                    weights[i][j] = rand.nextDouble();
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return a temporary coordinate file placing every node at the origin
+     */
+    private static File writeCoordinates(int n) throws IOException {
+        File xy = File.createTempFile("check", "XY");
+        try (PrintWriter out = new PrintWriter(xy)) {
+            for (int line = 0; line < 2; line++) {
+                for (int i = 0; i < n; i++) {
+                    out.print(i == 0 ? "0" : ",0");
+                }
+                out.println();
+            }
+        }
+        return xy;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}